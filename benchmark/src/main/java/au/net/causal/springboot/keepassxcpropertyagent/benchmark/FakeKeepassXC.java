@@ -0,0 +1,241 @@
+package au.net.causal.springboot.keepassxcpropertyagent.benchmark;
+
+import com.iwebpp.crypto.TweetNaclFast;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * A fake KeepassXC that serves a fixed set of entries over the KeepassXC browser protocol on a Unix domain socket.
+ * It accepts any client without prompting and never locks, so the agent can be benchmarked without a desktop.
+ * <p>
+ *
+ * KeepassXC clients find the socket through the <code>XDG_RUNTIME_DIR</code> (Linux) or <code>TMPDIR</code> (Mac)
+ * environment variables, so processes using the fake must have these set to {@link #getSocketDirectory()}.
+ *
+ * @see <a href="https://github.com/keepassxreboot/keepassxc-browser/blob/develop/keepassxc-protocol.md">KeepassXC protocol documentation</a>
+ */
+public class FakeKeepassXC implements AutoCloseable
+{
+    private static final String SOCKET_NAME = "org.keepassxc.KeePassXC.BrowserServer";
+    private static final String VERSION = "2.7.4";
+    private static final String DATABASE_HASH = "29234e32274a32276e25666a42";
+    private static final String ASSOCIATION_ID = "benchmark";
+
+    private final Path socketDirectory;
+    private final Map<String, Map<String, String>> entries;
+    private final TweetNaclFast.Box.KeyPair serverKeyPair = TweetNaclFast.Box.keyPair();
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * Starts the fake KeepassXC.
+     *
+     * @param socketDirectory directory to create the socket in.
+     * @param entries entries to serve, keyed by entry URL with each value holding the entry's advanced attributes.
+     *
+     * @throws IOException if an error occurs creating the socket.
+     */
+    public FakeKeepassXC(Path socketDirectory, Map<String, Map<String, String>> entries)
+    throws IOException
+    {
+        this.socketDirectory = Objects.requireNonNull(socketDirectory);
+        this.entries = Map.copyOf(entries);
+
+        Path socketFile = socketDirectory.resolve(SOCKET_NAME);
+        Files.deleteIfExists(socketFile);
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socketFile));
+
+        Thread acceptThread = new Thread(this::acceptConnections, "fake-keepassxc");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Creates the entries used for benchmarking, which mimic an application with a moderate number of secrets.
+     *
+     * @return the benchmark entries.
+     */
+    public static Map<String, Map<String, String>> benchmarkEntries()
+    {
+        Map<String, String> appAttributes = new LinkedHashMap<>();
+        appAttributes.put("KPH: spring:sample.api-key", "benchmark-api-key");
+        for (int i = 0; i < SampleApplication.SECRET_COUNT; i++)
+        {
+            appAttributes.put("KPH: spring:sample.secret." + i, "secret-" + i + "-" + UUID.randomUUID());
+        }
+
+        StringBuilder yaml = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+        {
+            yaml.append("bulk").append(i).append(":\n")
+                .append("  username: user").append(i).append('\n')
+                .append("  password: '").append(UUID.randomUUID()).append("'\n");
+        }
+        appAttributes.put("KPH: spring-yaml:sample", yaml.toString());
+
+        return Map.of("spring://benchmark", appAttributes,
+                      "spring://benchmark-db", Map.of("KPH: spring:password", "benchmark-db-password"));
+    }
+
+    /**
+     * @return the directory containing the socket, which clients must use as their runtime directory.
+     */
+    public Path getSocketDirectory()
+    {
+        return socketDirectory;
+    }
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        serverChannel.close();
+        Files.deleteIfExists(socketDirectory.resolve(SOCKET_NAME));
+    }
+
+    private void acceptConnections()
+    {
+        try
+        {
+            while (true)
+            {
+                SocketChannel channel = serverChannel.accept();
+                Thread connectionThread = new Thread(() -> handleConnection(channel), "fake-keepassxc-connection");
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            }
+        }
+        catch (ClosedChannelException e)
+        {
+            //Closed normally
+        }
+        catch (IOException e)
+        {
+            System.err.println("Fake KeepassXC failed to accept connection: " + e);
+        }
+    }
+
+    private void handleConnection(SocketChannel channel)
+    {
+        try (channel)
+        {
+            TweetNaclFast.Box box = null;
+            ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+            while (channel.read(buf) >= 0)
+            {
+                buf.flip();
+                String text = StandardCharsets.UTF_8.decode(buf).toString();
+                buf.clear();
+
+                //More than one message may arrive in a single read
+                JSONTokener tokener = new JSONTokener(text);
+                while (tokener.nextClean() == '{')
+                {
+                    tokener.back();
+                    JSONObject request = new JSONObject(tokener);
+                    String action = request.getString("action");
+                    byte[] nonce = decode(request.getString("nonce"));
+                    byte[] responseNonce = incrementNonce(nonce);
+
+                    JSONObject response;
+                    if ("change-public-keys".equals(action))
+                    {
+                        box = new TweetNaclFast.Box(decode(request.getString("publicKey")), serverKeyPair.getSecretKey());
+                        response = new JSONObject().put("action", action)
+                                                   .put("version", VERSION)
+                                                   .put("publicKey", encode(serverKeyPair.getPublicKey()))
+                                                   .put("nonce", encode(responseNonce))
+                                                   .put("success", "true");
+                    }
+                    else if (box == null)
+                        response = new JSONObject().put("action", action).put("error", "Public keys not exchanged").put("errorCode", "2");
+                    else
+                    {
+                        JSONObject message = new JSONObject(new String(box.open(decode(request.getString("message")), nonce), StandardCharsets.UTF_8));
+                        JSONObject reply = handleAction(action, message);
+                        reply.put("version", VERSION).put("nonce", encode(responseNonce)).put("success", "true");
+                        response = new JSONObject().put("action", action)
+                                                   .put("message", encode(box.box(reply.toString().getBytes(StandardCharsets.UTF_8), responseNonce)))
+                                                   .put("nonce", encode(responseNonce));
+                    }
+
+                    channel.write(ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            //Client disconnected
+        }
+    }
+
+    private JSONObject handleAction(String action, JSONObject message)
+    {
+        JSONObject reply = new JSONObject().put("hash", DATABASE_HASH);
+        switch (action)
+        {
+            case "associate", "test-associate" -> reply.put("id", ASSOCIATION_ID);
+            case "get-logins" ->
+            {
+                JSONArray replyEntries = new JSONArray();
+                Map<String, String> attributes = entries.get(message.optString("url"));
+                if (attributes != null)
+                {
+                    JSONArray stringFields = new JSONArray();
+                    attributes.forEach((name, value) -> stringFields.put(new JSONObject().put(name, value)));
+                    replyEntries.put(new JSONObject().put("name", message.getString("url"))
+                                                     .put("login", "")
+                                                     .put("password", "")
+                                                     .put("group", "Benchmark")
+                                                     .put("uuid", UUID.nameUUIDFromBytes(message.getString("url").getBytes(StandardCharsets.UTF_8)).toString().replace("-", ""))
+                                                     .put("stringFields", stringFields));
+                }
+                reply.put("id", ASSOCIATION_ID).put("count", replyEntries.length()).put("entries", replyEntries);
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Increments a nonce as a little-endian number, the same way libsodium's <code>sodium_increment</code> does.
+     */
+    private static byte[] incrementNonce(byte[] nonce)
+    {
+        byte[] result = nonce.clone();
+        int carry = 1;
+        for (int i = 0; i < result.length; i++)
+        {
+            carry += result[i] & 0xFF;
+            result[i] = (byte)carry;
+            carry >>>= 8;
+        }
+        return result;
+    }
+
+    private static byte[] decode(String base64)
+    {
+        return Base64.getDecoder().decode(base64);
+    }
+
+    private static String encode(byte[] data)
+    {
+        return Base64.getEncoder().encodeToString(data);
+    }
+}
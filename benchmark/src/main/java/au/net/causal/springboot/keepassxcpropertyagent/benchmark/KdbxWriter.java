@@ -0,0 +1,213 @@
+package au.net.causal.springboot.keepassxcpropertyagent.benchmark;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Writes entries to a minimal KDBX 4 database file so the agent can be benchmarked reading a database directly instead
+ * of through {@link FakeKeepassXC}.
+ * <p>
+ *
+ * The database uses AES-256 and AES-KDF without compression or protected values.  It is opened with a key file rather
+ * than a password so no environment variable is needed.  The key derivation uses a modest number of rounds so that the
+ * benchmark measures the agent rather than key derivation.
+ */
+public class KdbxWriter
+{
+    private static final byte[] CIPHER_AES256 = HexFormat.of().parseHex("31c1f2e6bf714350be5805216afc5aff");
+    private static final byte[] KDF_AES = HexFormat.of().parseHex("c9d9f39a628a4460bf740d08c18a4fea");
+    private static final long KDF_ROUNDS = 10_000L;
+    private static final int RANDOM_STREAM_CHACHA20 = 3;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Writes a database and the key file that opens it.
+     *
+     * @param file the database file to write.
+     * @param keyFile the key file to write.
+     * @param entries entry attributes keyed by entry URL.
+     *
+     * @throws IOException if an error occurs writing the files.
+     */
+    public void write(Path file, Path keyFile, Map<String, Map<String, String>> entries)
+    throws IOException
+    {
+        try
+        {
+            byte[] key = randomBytes(32);
+            Files.write(keyFile, key);
+
+            byte[] masterSeed = randomBytes(32);
+            byte[] kdfSeed = randomBytes(32);
+            byte[] iv = randomBytes(16);
+
+            ByteArrayOutputStream kdfParameters = new ByteArrayOutputStream();
+            kdfParameters.writeBytes(shortBytes(0x0100));
+            writeVariant(kdfParameters, 0x42, "$UUID", KDF_AES);
+            writeVariant(kdfParameters, 0x05, "R", longBytes(KDF_ROUNDS));
+            writeVariant(kdfParameters, 0x42, "S", kdfSeed);
+            kdfParameters.write(0);
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.writeBytes(intBytes(0x9AA2D903));
+            header.writeBytes(intBytes(0xB54BFB67));
+            header.writeBytes(shortBytes(1));
+            header.writeBytes(shortBytes(4));
+            writeField(header, 2, CIPHER_AES256);
+            writeField(header, 3, intBytes(0));
+            writeField(header, 4, masterSeed);
+            writeField(header, 7, iv);
+            writeField(header, 11, kdfParameters.toByteArray());
+            writeField(header, 0, "\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            byte[] headerBytes = header.toByteArray();
+
+            //A key file with exactly 32 bytes is used as the key as-is
+            byte[] transformedKey = aesKdf(digest("SHA-256", key), kdfSeed);
+            byte[] hmacKey = digest("SHA-512", masterSeed, transformedKey, new byte[] {1});
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            writeField(content, 1, intBytes(RANDOM_STREAM_CHACHA20));
+            writeField(content, 2, randomBytes(64));
+            writeField(content, 0, new byte[0]);
+            content.writeBytes(xml(entries).getBytes(StandardCharsets.UTF_8));
+
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(digest("SHA-256", masterSeed, transformedKey), "AES"), new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(content.toByteArray());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.writeBytes(headerBytes);
+            out.writeBytes(digest("SHA-256", headerBytes));
+            out.writeBytes(hmac(hmacKey, -1L, headerBytes));
+            writeBlock(out, hmacKey, 0L, encrypted);
+            writeBlock(out, hmacKey, 1L, new byte[0]);
+            Files.write(file, out.toByteArray());
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Failed to create KDBX file: " + e, e);
+        }
+    }
+
+    private static String xml(Map<String, Map<String, String>> entries)
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><KeePassFile><Root><Group><Name>Benchmark</Name>");
+        entries.forEach((url, attributes) ->
+        {
+            xml.append("<Entry>");
+            appendString(xml, "URL", url);
+            attributes.forEach((name, value) -> appendString(xml, name, value));
+            xml.append("</Entry>");
+        });
+        return xml.append("</Group></Root></KeePassFile>").toString();
+    }
+
+    private static void appendString(StringBuilder xml, String key, String value)
+    {
+        xml.append("<String><Key>").append(escape(key)).append("</Key><Value>").append(escape(value)).append("</Value></String>");
+    }
+
+    private static String escape(String s)
+    {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static byte[] aesKdf(byte[] compositeKey, byte[] seed)
+    throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, "AES"));
+        byte[] key = compositeKey.clone();
+        for (long i = 0; i < KDF_ROUNDS; i++)
+        {
+            cipher.doFinal(key, 0, key.length, key, 0);
+        }
+        return digest("SHA-256", key);
+    }
+
+    private static void writeBlock(ByteArrayOutputStream out, byte[] hmacKey, long index, byte[] block)
+    throws GeneralSecurityException
+    {
+        ByteArrayOutputStream macInput = new ByteArrayOutputStream();
+        macInput.writeBytes(longBytes(index));
+        macInput.writeBytes(intBytes(block.length));
+        macInput.writeBytes(block);
+
+        out.writeBytes(hmac(hmacKey, index, macInput.toByteArray()));
+        out.writeBytes(intBytes(block.length));
+        out.writeBytes(block);
+    }
+
+    private static byte[] hmac(byte[] hmacKey, long blockIndex, byte[] data)
+    throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(digest("SHA-512", longBytes(blockIndex), hmacKey), "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static void writeField(ByteArrayOutputStream out, int id, byte[] data)
+    {
+        out.write(id);
+        out.writeBytes(intBytes(data.length));
+        out.writeBytes(data);
+    }
+
+    private static void writeVariant(ByteArrayOutputStream out, int type, String name, byte[] value)
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        out.write(type);
+        out.writeBytes(intBytes(nameBytes.length));
+        out.writeBytes(nameBytes);
+        out.writeBytes(intBytes(value.length));
+        out.writeBytes(value);
+    }
+
+    private static byte[] digest(String algorithm, byte[]... data)
+    throws GeneralSecurityException
+    {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        for (byte[] item : data)
+        {
+            digest.update(item);
+        }
+        return digest.digest();
+    }
+
+    private byte[] randomBytes(int length)
+    {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] shortBytes(int value)
+    {
+        return ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putShort((short)value).array();
+    }
+
+    private static byte[] intBytes(int value)
+    {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte[] longBytes(long value)
+    {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
+    }
+}
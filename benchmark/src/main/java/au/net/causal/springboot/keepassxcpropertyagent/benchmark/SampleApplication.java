@@ -0,0 +1,111 @@
+package au.net.causal.springboot.keepassxcpropertyagent.benchmark;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.IntStream;
+
+/**
+ * Representative Spring Boot application used for measuring agent startup overhead.  When the application is ready,
+ * it prints a single result line that is read by {@link StartupBenchmark}.
+ */
+@SpringBootApplication
+public class SampleApplication
+{
+    /**
+     * Prefix of the line printed when the application is ready.
+     */
+    public static final String RESULT_LINE_PREFIX = "BENCHMARK-RESULT ";
+
+    /**
+     * Number of numbered secret properties the benchmark's fake KeepassXC provides.
+     */
+    public static final int SECRET_COUNT = 50;
+
+    public static void main(String... args)
+    {
+        SpringApplication.run(SampleApplication.class, args);
+    }
+
+    @Bean
+    public ApplicationListener<ApplicationReadyEvent> benchmarkResultReporter(Environment environment,
+                                                                              @Value("${sample.api-key:}") String apiKey,
+                                                                              @Value("${sample.db-password:}") String dbPassword)
+    {
+        return event ->
+        {
+            long readyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+            long loadedClasses = ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+
+            //Count secrets resolved so the harness can tell if the agent is actually working
+            long secretsResolved = IntStream.range(0, SECRET_COUNT)
+                                            .mapToObj(i -> environment.getProperty("sample.secret." + i))
+                                            .filter(v -> v != null && !v.isEmpty())
+                                            .count();
+            if (!apiKey.isEmpty())
+                secretsResolved++;
+            if (!dbPassword.isEmpty())
+                secretsResolved++;
+
+            //Measured after a full GC so that classes from discarded class loaders have been unloaded
+            System.gc();
+            long metaspaceKb = readMetaspaceUsedKb();
+            long unloadedClasses = ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount();
+
+            System.out.println(RESULT_LINE_PREFIX +
+                               "readyMillis=" + readyMillis +
+                               " loadedClasses=" + loadedClasses +
+                               " peakRssKb=" + readPeakRssKb() +
+                               " metaspaceKb=" + metaspaceKb +
+                               " unloadedClasses=" + unloadedClasses +
+                               " secretsResolved=" + secretsResolved);
+            System.out.flush();
+        };
+    }
+
+    /**
+     * @return the metaspace currently used by this process in kilobytes, or -1 if it is not available.
+     */
+    private static long readMetaspaceUsedKb()
+    {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                                .filter(pool -> "Metaspace".equals(pool.getName()))
+                                .mapToLong(pool -> pool.getUsage().getUsed() / 1024L)
+                                .findFirst()
+                                .orElse(-1L);
+    }
+
+    /**
+     * @return the peak resident set size of this process in kilobytes, or -1 if it is not available on this platform.
+     */
+    private static long readPeakRssKb()
+    {
+        Path statusFile = Path.of("/proc/self/status");
+        if (Files.notExists(statusFile))
+            return -1L;
+
+        try
+        {
+            for (String line : Files.readAllLines(statusFile))
+            {
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+            }
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            //Fall through
+        }
+
+        return -1L;
+    }
+}
@@ -0,0 +1,335 @@
+package au.net.causal.springboot.keepassxcpropertyagent.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Measures the startup cost of the agent by repeatedly launching {@link SampleApplication} in a new JVM without the
+ * agent, and with the agent in each of its modes reading from a {@link FakeKeepassXC} or directly from a KDBX file.
+ * <p>
+ *
+ * For each scenario, the time from JVM start to <code>ApplicationReadyEvent</code>, the number of loaded classes, the
+ * peak resident set size, the metaspace used and the number of classes unloaded once the application is ready are
+ * recorded and reported as percentiles.
+ * <p>
+ *
+ * Arguments:
+ * <ul>
+ *     <li><code>--agent=&lt;file&gt;</code> the agent JAR file to benchmark (required)</li>
+ *     <li><code>--iterations=&lt;n&gt;</code> measured runs per scenario</li>
+ *     <li><code>--warmups=&lt;n&gt;</code> unmeasured runs per scenario before measuring, which also populate any
+ *         caches the agent uses.  Each scenario uses its own home directory for the application, so the agent's caches
+ *         start out empty for the first run of a scenario and are then shared by the rest of its runs, as they would be
+ *         for an application that is started repeatedly.</li>
+ *     <li><code>--scenario=&lt;name&gt;</code> only run the named scenario, may be repeated</li>
+ * </ul>
+ */
+public class StartupBenchmark
+{
+    private static final long RUN_TIMEOUT_SECONDS = 300L;
+
+    private final Path agentJar;
+    private final Path workDirectory;
+    private final FakeKeepassXC keepass;
+    private final String classPath = System.getProperty("java.class.path");
+    private final Path javaExecutable = Path.of(System.getProperty("java.home"), "bin", "java");
+
+    public StartupBenchmark(Path agentJar, Path workDirectory, FakeKeepassXC keepass)
+    {
+        this.agentJar = agentJar.toAbsolutePath();
+        this.workDirectory = workDirectory;
+        this.keepass = keepass;
+    }
+
+    public static void main(String... args)
+    throws Exception
+    {
+        Path agentJar = null;
+        int iterations = 10;
+        int warmups = 2;
+        List<String> selectedScenarios = new ArrayList<>();
+        for (String arg : args)
+        {
+            String[] argSplit = arg.split("=", 2);
+            String value = argSplit.length > 1 ? argSplit[1] : "";
+            switch (argSplit[0])
+            {
+                case "--agent" -> agentJar = Path.of(value);
+                case "--iterations" -> iterations = Integer.parseInt(value);
+                case "--warmups" -> warmups = Integer.parseInt(value);
+                case "--scenario" -> selectedScenarios.add(value);
+                default -> throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        if (agentJar == null || Files.notExists(agentJar))
+        {
+            System.err.println("Agent JAR " + agentJar + " not found, build it first with 'mvn package' and specify it with --agent=<file>");
+            System.exit(1);
+        }
+
+        Path workDirectory = Files.createTempDirectory("keepassxc-benchmark");
+        try (FakeKeepassXC keepass = new FakeKeepassXC(workDirectory, FakeKeepassXC.benchmarkEntries()))
+        {
+            StartupBenchmark benchmark = new StartupBenchmark(agentJar, workDirectory, keepass);
+
+            Map<Scenario, List<RunResult>> results = new LinkedHashMap<>();
+            for (Scenario scenario : benchmark.scenarios())
+            {
+                if (!selectedScenarios.isEmpty() && !selectedScenarios.contains(scenario.name()))
+                    continue;
+
+                System.out.println("Running scenario " + scenario.name() + "...");
+                scenario.preparation().prepare();
+                for (int i = 0; i < warmups; i++)
+                {
+                    benchmark.launch(scenario);
+                }
+                List<RunResult> scenarioResults = new ArrayList<>(iterations);
+                for (int i = 0; i < iterations; i++)
+                {
+                    scenarioResults.add(benchmark.launch(scenario));
+                }
+                results.put(scenario, scenarioResults);
+            }
+
+            report(results);
+        }
+    }
+
+    /**
+     * @return all scenarios to benchmark.  The first scenario is the baseline, without the agent.
+     */
+    private List<Scenario> scenarios()
+    {
+        Path cdsClassList = workDirectory.resolve("agent.classlist");
+        Path cdsArchive = workDirectory.resolve("agent.jsa");
+        Path kdbxFile = workDirectory.resolve("benchmark.kdbx");
+        Path kdbxKeyFile = workDirectory.resolve("benchmark.key");
+
+        return List.of(
+                new Scenario("no-agent", List.of(), false, Preparation.NONE),
+                new Scenario("agent", List.of(agentArgument("")), true, Preparation.NONE),
+                new Scenario("agent-no-woven-class-cache", List.of(agentArgument("wovenClassCache=false")), true, Preparation.NONE),
+                new Scenario("agent-shared-class-loader", List.of(agentArgument("isolatedClassLoader=false")), true, Preparation.NONE),
+                new Scenario("agent-access-tracking", List.of(agentArgument("accessTracking=true,accessProfile=benchmark")), true, Preparation.NONE),
+                new Scenario("agent-kdbx",
+                             List.of(agentArgument("kdbxFile=" + kdbxFile + ",kdbxKeyFile=" + kdbxKeyFile)),
+                             true,
+                             () -> new KdbxWriter().write(kdbxFile, kdbxKeyFile, FakeKeepassXC.benchmarkEntries())),
+                new Scenario("agent-cds",
+                             List.of("-XX:SharedArchiveFile=" + cdsArchive, agentArgument("isolatedClassLoader=false"), "-cp", agentJar + File.pathSeparator + classPath),
+                             true,
+                             () -> buildCdsArchive(cdsClassList, cdsArchive))
+        );
+    }
+
+    private String agentArgument(String extraOptions)
+    {
+        String options = "entryUri=spring://benchmark,credentialsStoreFile=" + workDirectory.resolve("credentials");
+        if (!extraOptions.isEmpty())
+            options += "," + extraOptions;
+
+        return "-javaagent:" + agentJar + "=" + options;
+    }
+
+    private void buildCdsArchive(Path classList, Path archive)
+    throws IOException, InterruptedException
+    {
+        //Training run records the class list
+        launch(new Scenario("cds-training",
+                            List.of(agentArgument("cdsClassList=" + classList + ",isolatedClassLoader=false"), "-cp", agentJar + File.pathSeparator + classPath),
+                            true, Preparation.NONE));
+
+        Process process = new ProcessBuilder(javaExecutable.toString(), "-Duser.home=" + homeDirectory("cds-training"), "-jar", agentJar.toString(), classList.toString(), archive.toString())
+                                .redirectErrorStream(true)
+                                .redirectOutput(workDirectory.resolve("cds-dump.log").toFile())
+                                .start();
+        if (process.waitFor() != 0)
+            throw new IOException("Failed to build CDS archive, see " + workDirectory.resolve("cds-dump.log"));
+    }
+
+    /**
+     * @return the home directory used by the sample application when running a scenario.
+     */
+    private Path homeDirectory(String scenarioName)
+    throws IOException
+    {
+        return Files.createDirectories(workDirectory.resolve("home").resolve(scenarioName));
+    }
+
+    /**
+     * Launches the sample application once for a scenario and waits for it to report its result.
+     */
+    private RunResult launch(Scenario scenario)
+    throws IOException, InterruptedException
+    {
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable.toString());
+
+        //The agent keeps its caches under the user's home directory, use one per scenario so scenarios don't share caches
+        command.add("-Duser.home=" + homeDirectory(scenario.name()));
+        command.addAll(scenario.jvmArguments());
+        if (!scenario.jvmArguments().contains("-cp"))
+        {
+            command.add("-cp");
+            command.add(classPath);
+        }
+        command.add(SampleApplication.class.getName());
+        if (scenario.usesAgent())
+            command.add("--spring.profiles.active=keepassxc");
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+        processBuilder.environment().put("XDG_RUNTIME_DIR", keepass.getSocketDirectory().toString());
+        processBuilder.environment().put("TMPDIR", keepass.getSocketDirectory().toString());
+
+        Process process = processBuilder.start();
+        Deque<String> recentOutput = new ArrayDeque<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)))
+        {
+            Thread watchdog = new Thread(() ->
+            {
+                try
+                {
+                    if (!process.waitFor(RUN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                        process.destroyForcibly();
+                }
+                catch (InterruptedException e)
+                {
+                    process.destroyForcibly();
+                }
+            });
+            watchdog.setDaemon(true);
+            watchdog.start();
+
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.startsWith(SampleApplication.RESULT_LINE_PREFIX))
+                {
+                    RunResult result = RunResult.parse(line.substring(SampleApplication.RESULT_LINE_PREFIX.length()));
+                    if (scenario.usesAgent() && result.secretsResolved() < SampleApplication.SECRET_COUNT + 2)
+                        System.err.println("Warning: only " + result.secretsResolved() + " secrets were resolved in scenario " + scenario.name() + ", the agent may not be working");
+                    return result;
+                }
+
+                recentOutput.addLast(line);
+                if (recentOutput.size() > 50)
+                    recentOutput.removeFirst();
+            }
+        }
+        finally
+        {
+            process.destroy();
+            if (!process.waitFor(30L, TimeUnit.SECONDS))
+                process.destroyForcibly();
+        }
+
+        throw new IOException("Sample application exited without a result in scenario " + scenario.name() + ":" + System.lineSeparator() +
+                              String.join(System.lineSeparator(), recentOutput));
+    }
+
+    private static void report(Map<Scenario, List<RunResult>> results)
+    {
+        System.out.println();
+        System.out.printf("%-28s %5s | %-32s | %-24s | %-22s | %-24s | %-16s%n", "", "", "ready time (ms)", "loaded classes", "peak RSS (MB)", "metaspace (KB)", "unloaded classes");
+        System.out.printf("%-28s %5s | %7s %7s %7s %7s | %7s %7s %8s | %7s %7s %6s | %7s %7s %8s | %7s %8s%n",
+                          "scenario", "runs", "p50", "p90", "p99", "max", "p50", "max", "vs base", "p50", "max", "vs base", "p50", "max", "vs base", "p50", "max");
+
+        List<RunResult> baseline = results.values().iterator().next();
+        long baselineReady = percentile(baseline, RunResult::readyMillis, 50);
+        long baselineClasses = percentile(baseline, RunResult::loadedClasses, 50);
+        long baselineRss = percentile(baseline, RunResult::peakRssKb, 50);
+        long baselineMetaspace = percentile(baseline, RunResult::metaspaceKb, 50);
+
+        results.forEach((scenario, runs) ->
+        {
+            long ready = percentile(runs, RunResult::readyMillis, 50);
+            long classes = percentile(runs, RunResult::loadedClasses, 50);
+            long rss = percentile(runs, RunResult::peakRssKb, 50);
+            long metaspace = percentile(runs, RunResult::metaspaceKb, 50);
+            System.out.printf("%-28s %5d | %7d %7d %7d %7d | %7d %7d %+8d | %7d %7d %+6d | %7d %7d %+8d | %7d %8d   (ready %+d ms)%n",
+                              scenario.name(), runs.size(),
+                              ready, percentile(runs, RunResult::readyMillis, 90), percentile(runs, RunResult::readyMillis, 99), percentile(runs, RunResult::readyMillis, 100),
+                              classes, percentile(runs, RunResult::loadedClasses, 100), classes - baselineClasses,
+                              rss / 1024L, percentile(runs, RunResult::peakRssKb, 100) / 1024L, (rss - baselineRss) / 1024L,
+                              metaspace, percentile(runs, RunResult::metaspaceKb, 100), metaspace - baselineMetaspace,
+                              percentile(runs, RunResult::unloadedClasses, 50), percentile(runs, RunResult::unloadedClasses, 100),
+                              ready - baselineReady);
+        });
+    }
+
+    /**
+     * Nearest-rank percentile.
+     */
+    private static long percentile(List<RunResult> runs, ToLongFunction<RunResult> metric, int percentile)
+    {
+        long[] values = runs.stream().mapToLong(metric).sorted().toArray();
+        if (values.length == 0)
+            return 0L;
+
+        int rank = (int)Math.ceil(percentile / 100.0 * values.length);
+        return values[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Work done once before a scenario is run.
+     */
+    @FunctionalInterface
+    private static interface Preparation
+    {
+        public static final Preparation NONE = () -> {};
+
+        public void prepare()
+        throws IOException, InterruptedException;
+    }
+
+    /**
+     * A way of launching the sample application.
+     *
+     * @param name name of the scenario used in the report.
+     * @param jvmArguments additional JVM arguments.  If these contain a class path, it is used instead of the default one.
+     * @param usesAgent whether the agent is used, and so whether properties from KeepassXC are expected.
+     * @param preparation work done before the scenario is run.
+     */
+    private static record Scenario(String name, List<String> jvmArguments, boolean usesAgent, Preparation preparation)
+    {
+    }
+
+    /**
+     * Metrics reported by a single run of the sample application.
+     */
+    private static record RunResult(long readyMillis, long loadedClasses, long peakRssKb, long metaspaceKb, long unloadedClasses,
+                                     long secretsResolved)
+    {
+        public static RunResult parse(String values)
+        {
+            Map<String, Long> valueMap = new LinkedHashMap<>();
+            for (String value : values.trim().split(" "))
+            {
+                String[] valueSplit = value.split("=", 2);
+                valueMap.put(valueSplit[0], Long.parseLong(valueSplit[1]));
+            }
+
+            return new RunResult(valueMap.getOrDefault("readyMillis", -1L),
+                                 valueMap.getOrDefault("loadedClasses", -1L),
+                                 valueMap.getOrDefault("peakRssKb", -1L),
+                                 valueMap.getOrDefault("metaspaceKb", -1L),
+                                 valueMap.getOrDefault("unloadedClasses", -1L),
+                                 valueMap.getOrDefault("secretsResolved", 0L));
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package au.net.causal.springboot.keepassxcpropertyagent;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
 
@@ -16,15 +18,40 @@ public class AgentConfiguration
     private static final String CONFIG_KEY_UNLOCK_MAX_WAIT_TIME = "unlockMaxWaitTime";
     private static final String CONFIG_KEY_UNLOCK_MESSAGE_REPEAT_TIME = "unlockMessageRepeatTime";
     private static final String CONFIG_KEY_PROPERTY_PREFIX = "propertyPrefix";
+    private static final String CONFIG_KEY_PROPERTIES_BLOCK_PREFIX = "propertiesBlockPrefix";
+    private static final String CONFIG_KEY_YAML_BLOCK_PREFIX = "yamlBlockPrefix";
+    private static final String CONFIG_KEY_WOVEN_CLASS_CACHE = "wovenClassCache";
+    private static final String CONFIG_KEY_CDS_CLASS_LIST = "cdsClassList";
+    private static final String CONFIG_KEY_ACCESS_TRACKING = "accessTracking";
+    private static final String CONFIG_KEY_ACCESS_PROFILE = "accessProfile";
+    private static final String CONFIG_KEY_KDBX_FILE = "kdbxFile";
+    private static final String CONFIG_KEY_KDBX_KEY_FILE = "kdbxKeyFile";
+    private static final String CONFIG_KEY_KDBX_PASSWORD_VARIABLE = "kdbxPasswordVariable";
+    private static final String CONFIG_KEY_ISOLATED_CLASS_LOADER = "isolatedClassLoader";
 
     private static final String DEFAULT_ENTRY_URI = "spring://app";
 
+    /**
+     * Directory where the agent saves its files, such as pairing credentials.
+     */
+    public static final Path AGENT_DIRECTORY = Path.of(System.getProperty("user.home"), ".spring-boot-keepassxc-property-agent");
+
     private final List<String> entryUris = new ArrayList<>();
 
     private Path credentialsStoreFile = Path.of("spring-boot-keepassxc-property-agent-credentials");
     private Duration unlockMaxWaitTime = Duration.ofMinutes(2L);
     private Duration unlockMessageRepeatTime = Duration.ofSeconds(5L);
     private String propertyPrefix = "KPH: spring:";
+    private String propertiesBlockPrefix = "KPH: spring-properties:";
+    private String yamlBlockPrefix = "KPH: spring-yaml:";
+    private boolean wovenClassCacheEnabled = true;
+    private Path cdsClassListFile;
+    private boolean accessTrackingEnabled;
+    private String accessProfile;
+    private Path kdbxFile;
+    private Path kdbxKeyFile;
+    private String kdbxPasswordVariable = "KEEPASSXC_PROPERTY_AGENT_PASSWORD";
+    private boolean isolatedClassLoaderEnabled = true;
 
     public static AgentConfiguration parse(String argsString)
     {
@@ -51,6 +78,16 @@ public class AgentConfiguration
                         case CONFIG_KEY_UNLOCK_MAX_WAIT_TIME -> args.setUnlockMaxWaitTime(Duration.parse(value));
                         case CONFIG_KEY_UNLOCK_MESSAGE_REPEAT_TIME -> args.setUnlockMessageRepeatTime(Duration.parse(value));
                         case CONFIG_KEY_PROPERTY_PREFIX -> args.setPropertyPrefix(value);
+                        case CONFIG_KEY_PROPERTIES_BLOCK_PREFIX -> args.setPropertiesBlockPrefix(value);
+                        case CONFIG_KEY_YAML_BLOCK_PREFIX -> args.setYamlBlockPrefix(value);
+                        case CONFIG_KEY_WOVEN_CLASS_CACHE -> args.setWovenClassCacheEnabled(Boolean.parseBoolean(value));
+                        case CONFIG_KEY_CDS_CLASS_LIST -> args.setCdsClassListFile(Path.of(value));
+                        case CONFIG_KEY_ACCESS_TRACKING -> args.setAccessTrackingEnabled(Boolean.parseBoolean(value));
+                        case CONFIG_KEY_ACCESS_PROFILE -> args.setAccessProfile(value);
+                        case CONFIG_KEY_KDBX_FILE -> args.setKdbxFile(Path.of(value));
+                        case CONFIG_KEY_KDBX_KEY_FILE -> args.setKdbxKeyFile(Path.of(value));
+                        case CONFIG_KEY_KDBX_PASSWORD_VARIABLE -> args.setKdbxPasswordVariable(value);
+                        case CONFIG_KEY_ISOLATED_CLASS_LOADER -> args.setIsolatedClassLoaderEnabled(Boolean.parseBoolean(value));
                     }
                 }
                 catch (DateTimeParseException e)
@@ -67,6 +104,29 @@ public class AgentConfiguration
         return args;
     }
 
+    /**
+     * Derives a default access profile name from the working directory and the configured entry URIs.  The main class
+     * is not used since launchers such as Surefire, Gradle workers and IDEs run many different applications through
+     * the same main class.
+     */
+    private String defaultAccessProfile()
+    {
+        Path workingDirectory = Path.of(System.getProperty("user.dir", "")).toAbsolutePath();
+
+        CRC32 checksum = new CRC32();
+        checksum.update(workingDirectory.toString().getBytes(StandardCharsets.UTF_8));
+        for (String entryUri : entryUris)
+        {
+            checksum.update('\n');
+            checksum.update(entryUri.getBytes(StandardCharsets.UTF_8));
+        }
+
+        //Directory name keeps profiles recognizable, the checksum tells apart directories and configurations
+        Path directoryName = workingDirectory.getFileName();
+        String name = (directoryName == null ? "root" : directoryName.toString().replaceAll("[^A-Za-z0-9._-]", "_"));
+        return name + "-" + String.format("%08x", checksum.getValue());
+    }
+
     /**
      * @return a list of URIs for KeepassXC entries that will be used for Spring properties.
      *
@@ -170,4 +230,237 @@ public class AgentConfiguration
     {
         this.propertyPrefix = propertyPrefix;
     }
+
+    /**
+     * @return the prefix for KeepassXC entry attribute names whose values are blocks of Java properties that will be
+     *         expanded into multiple properties.
+     *
+     * @see #setPropertiesBlockPrefix(String)
+     */
+    public String getPropertiesBlockPrefix()
+    {
+        return propertiesBlockPrefix;
+    }
+
+    /**
+     * Sets the prefix for KeepassXC entry attribute names whose values are blocks of Java properties.
+     *
+     * @param propertiesBlockPrefix the properties block prefix to set.
+     *
+     * @see #getPropertiesBlockPrefix()
+     */
+    public void setPropertiesBlockPrefix(String propertiesBlockPrefix)
+    {
+        this.propertiesBlockPrefix = propertiesBlockPrefix;
+    }
+
+    /**
+     * @return the prefix for KeepassXC entry attribute names whose values are YAML blocks that will be expanded into
+     *         multiple properties.
+     *
+     * @see #setYamlBlockPrefix(String)
+     */
+    public String getYamlBlockPrefix()
+    {
+        return yamlBlockPrefix;
+    }
+
+    /**
+     * Sets the prefix for KeepassXC entry attribute names whose values are YAML blocks.
+     *
+     * @param yamlBlockPrefix the YAML block prefix to set.
+     *
+     * @see #getYamlBlockPrefix()
+     */
+    public void setYamlBlockPrefix(String yamlBlockPrefix)
+    {
+        this.yamlBlockPrefix = yamlBlockPrefix;
+    }
+
+    /**
+     * @return whether woven Spring Boot bytecode is saved to disk and reused on later runs.
+     *
+     * @see #setWovenClassCacheEnabled(boolean)
+     */
+    public boolean isWovenClassCacheEnabled()
+    {
+        return wovenClassCacheEnabled;
+    }
+
+    /**
+     * Sets whether woven Spring Boot bytecode is saved to disk and reused on later runs.
+     *
+     * @param wovenClassCacheEnabled true to enable the cache, false to weave on every run.
+     *
+     * @see #isWovenClassCacheEnabled()
+     */
+    public void setWovenClassCacheEnabled(boolean wovenClassCacheEnabled)
+    {
+        this.wovenClassCacheEnabled = wovenClassCacheEnabled;
+    }
+
+    /**
+     * @return the file to write a CDS class list to when the JVM exits, or null to not record a class list.
+     *
+     * @see #setCdsClassListFile(Path)
+     */
+    public Path getCdsClassListFile()
+    {
+        return cdsClassListFile;
+    }
+
+    /**
+     * Sets the file to write a CDS class list to when the JVM exits.  The class list can be used to build a CDS
+     * archive containing the agent's classes.
+     *
+     * @param cdsClassListFile the class list file, or null to not record a class list.
+     *
+     * @see #getCdsClassListFile()
+     */
+    public void setCdsClassListFile(Path cdsClassListFile)
+    {
+        this.cdsClassListFile = cdsClassListFile;
+    }
+
+    /**
+     * @return whether the agent records which entries the application reads properties from, and on later runs only
+     *         fetches those entries up front.
+     *
+     * @see #setAccessTrackingEnabled(boolean)
+     */
+    public boolean isAccessTrackingEnabled()
+    {
+        return accessTrackingEnabled;
+    }
+
+    /**
+     * Sets whether the agent records which entries the application reads properties from.
+     *
+     * @param accessTrackingEnabled true to enable access tracking.
+     *
+     * @see #isAccessTrackingEnabled()
+     */
+    public void setAccessTrackingEnabled(boolean accessTrackingEnabled)
+    {
+        this.accessTrackingEnabled = accessTrackingEnabled;
+    }
+
+    /**
+     * @return the name of the profile that entry access is recorded in when access tracking is enabled.  Defaults to
+     *         a name derived from the working directory and the configured entry URIs.
+     *
+     * @see #setAccessProfile(String)
+     */
+    public String getAccessProfile()
+    {
+        if (accessProfile == null)
+            return defaultAccessProfile();
+
+        return accessProfile;
+    }
+
+    /**
+     * Sets the name of the profile that entry access is recorded in.
+     *
+     * @param accessProfile the profile name.
+     *
+     * @see #getAccessProfile()
+     */
+    public void setAccessProfile(String accessProfile)
+    {
+        this.accessProfile = accessProfile;
+    }
+
+    /**
+     * @return a KDBX database file to read properties from directly, or null to read properties through KeepassXC.
+     *
+     * @see #setKdbxFile(Path)
+     */
+    public Path getKdbxFile()
+    {
+        return kdbxFile;
+    }
+
+    /**
+     * Sets a KDBX database file to read properties from directly instead of through KeepassXC.  This allows the agent
+     * to be used where KeepassXC is not running, such as on build servers.
+     *
+     * @param kdbxFile the database file, or null to read properties through KeepassXC.
+     *
+     * @see #getKdbxFile()
+     */
+    public void setKdbxFile(Path kdbxFile)
+    {
+        this.kdbxFile = kdbxFile;
+    }
+
+    /**
+     * @return the key file used to open the KDBX database file, or null if the database does not use a key file.
+     *
+     * @see #setKdbxKeyFile(Path)
+     */
+    public Path getKdbxKeyFile()
+    {
+        return kdbxKeyFile;
+    }
+
+    /**
+     * Sets the key file used to open the KDBX database file.
+     *
+     * @param kdbxKeyFile the key file, or null if the database does not use a key file.
+     *
+     * @see #getKdbxKeyFile()
+     */
+    public void setKdbxKeyFile(Path kdbxKeyFile)
+    {
+        this.kdbxKeyFile = kdbxKeyFile;
+    }
+
+    /**
+     * @return the name of the environment variable holding the password for the KDBX database file.
+     *
+     * @see #setKdbxPasswordVariable(String)
+     */
+    public String getKdbxPasswordVariable()
+    {
+        return kdbxPasswordVariable;
+    }
+
+    /**
+     * Sets the name of the environment variable holding the password for the KDBX database file.  If the variable is
+     * not set, the database is opened with only the key file.
+     *
+     * @param kdbxPasswordVariable the environment variable name.
+     *
+     * @see #getKdbxPasswordVariable()
+     */
+    public void setKdbxPasswordVariable(String kdbxPasswordVariable)
+    {
+        this.kdbxPasswordVariable = kdbxPasswordVariable;
+    }
+
+    /**
+     * @return whether the KeepassXC client, weaving code and the libraries they use are loaded in a separate class
+     *         loader that is discarded when they are no longer needed.
+     *
+     * @see #setIsolatedClassLoaderEnabled(boolean)
+     */
+    public boolean isIsolatedClassLoaderEnabled()
+    {
+        return isolatedClassLoaderEnabled;
+    }
+
+    /**
+     * Sets whether the KeepassXC client, weaving code and the libraries they use are loaded in a separate class loader.
+     * When enabled, these classes can be unloaded once properties have been read, but they must be loaded again if
+     * an entry is read lazily later on.
+     *
+     * @param isolatedClassLoaderEnabled true to use a separate class loader.
+     *
+     * @see #isIsolatedClassLoaderEnabled()
+     */
+    public void setIsolatedClassLoaderEnabled(boolean isolatedClassLoaderEnabled)
+    {
+        this.isolatedClassLoaderEnabled = isolatedClassLoaderEnabled;
+    }
 }
@@ -0,0 +1,22 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+
+/**
+ * Modifies the bytecode of a class as it is loaded.
+ */
+public interface ClassWeaver
+{
+    /**
+     * Weaves a class.
+     *
+     * @param loader the class loader that is loading the class.
+     * @param classfileBuffer the original bytecode of the class.
+     *
+     * @return the woven bytecode.
+     *
+     * @throws IOException if an error occurs weaving the class.
+     */
+    public byte[] weave(ClassLoader loader, byte[] classfileBuffer)
+    throws IOException;
+}
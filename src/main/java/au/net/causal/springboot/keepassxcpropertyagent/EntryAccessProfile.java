@@ -0,0 +1,225 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
+
+/**
+ * Records which configured KeepassXC entries an application actually reads properties from, so that on later runs
+ * only those entries need to be fetched up front.
+ * <p>
+ *
+ * For each entry, the profile remembers whether any of its properties were read and the names of the properties it
+ * contains.  Entries that were not used are fetched only when one of their known property names is read.  Entries that
+ * were not loaded during a run keep their previous state in the profile.
+ */
+public class EntryAccessProfile
+{
+    private static final String USED_KEY_PREFIX = "used.";
+    private static final String KEYS_KEY_PREFIX = "keys.";
+    private static final char KEY_SEPARATOR = ',';
+    private static final char KEY_ESCAPE = '\\';
+
+    private final Path profileFile;
+    private final Properties previous;
+    private final Map<String, Set<String>> loadedEntryKeys = new ConcurrentHashMap<>();
+    private final Set<String> usedEntryUris = ConcurrentHashMap.newKeySet();
+
+    private EntryAccessProfile(Path profileFile, Properties previous)
+    {
+        this.profileFile = Objects.requireNonNull(profileFile);
+        this.previous = Objects.requireNonNull(previous);
+    }
+
+    /**
+     * Loads a profile saved from an earlier run.
+     *
+     * @param profileFile the profile file.  If it does not exist, an empty profile is created.
+     *
+     * @return the loaded profile.
+     */
+    public static EntryAccessProfile load(Path profileFile)
+    {
+        Properties previous = new Properties();
+        if (Files.exists(profileFile))
+        {
+            try (Reader reader = Files.newBufferedReader(profileFile, StandardCharsets.UTF_8))
+            {
+                previous.load(reader);
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                //Corrupted profile just means everything is fetched again
+                log("Failed to read entry access profile " + profileFile + ", all entries will be read: " + e, e);
+                previous.clear();
+            }
+        }
+
+        return new EntryAccessProfile(profileFile, previous);
+    }
+
+    /**
+     * @return true if the entry was loaded and not used in the run the profile was saved from, so it can be fetched
+     *         lazily.
+     */
+    public boolean isLazy(String entryUri)
+    {
+        return "false".equals(previous.getProperty(USED_KEY_PREFIX + entryUri));
+    }
+
+    /**
+     * @return the names of properties the entry contained when it was last loaded.
+     */
+    public Set<String> getKnownKeys(String entryUri)
+    {
+        return splitKeys(previous.getProperty(KEYS_KEY_PREFIX + entryUri, ""));
+    }
+
+    /**
+     * Joins property names into a single value, escaping separators and escape characters in the names.
+     */
+    private static String joinKeys(Set<String> keys)
+    {
+        StringBuilder joined = new StringBuilder();
+        for (String key : keys)
+        {
+            if (!joined.isEmpty())
+                joined.append(KEY_SEPARATOR);
+
+            for (char c : key.toCharArray())
+            {
+                if (c == KEY_SEPARATOR || c == KEY_ESCAPE)
+                    joined.append(KEY_ESCAPE);
+
+                joined.append(c);
+            }
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Splits a value created with {@link #joinKeys(Set)} back into property names.
+     */
+    private static Set<String> splitKeys(String joined)
+    {
+        Set<String> keys = new LinkedHashSet<>();
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < joined.length(); i++)
+        {
+            char c = joined.charAt(i);
+            if (c == KEY_ESCAPE && i + 1 < joined.length())
+                key.append(joined.charAt(++i));
+            else if (c == KEY_SEPARATOR)
+            {
+                addKey(keys, key);
+                key.setLength(0);
+            }
+            else
+                key.append(c);
+        }
+        addKey(keys, key);
+        return keys;
+    }
+
+    private static void addKey(Set<String> keys, CharSequence key)
+    {
+        if (!key.isEmpty())
+            keys.add(key.toString());
+    }
+
+    /**
+     * Records that an entry was loaded in this run and the names of its properties.
+     */
+    public void recordLoaded(String entryUri, Set<String> keys)
+    {
+        loadedEntryKeys.put(entryUri, Set.copyOf(keys));
+    }
+
+    /**
+     * Records that a property from an entry was read in this run.
+     */
+    public void recordAccess(String entryUri)
+    {
+        usedEntryUris.add(entryUri);
+    }
+
+    /**
+     * Saves the profile, combining what was recorded in this run with the previous profile.
+     *
+     * @param entryUris the configured entry URIs.
+     *
+     * @throws IOException if an error occurs saving the profile.
+     */
+    public void save(List<String> entryUris)
+    throws IOException
+    {
+        //Nothing was loaded, maybe no Spring application ran, so keep the old profile as it is
+        if (loadedEntryKeys.isEmpty())
+            return;
+
+        Properties profile = new Properties();
+        for (String entryUri : entryUris)
+        {
+            Set<String> keys = loadedEntryKeys.get(entryUri);
+            if (keys != null)
+            {
+                profile.setProperty(USED_KEY_PREFIX + entryUri, String.valueOf(usedEntryUris.contains(entryUri)));
+                profile.setProperty(KEYS_KEY_PREFIX + entryUri, joinKeys(keys));
+            }
+            else if (previous.containsKey(USED_KEY_PREFIX + entryUri))
+            {
+                profile.setProperty(USED_KEY_PREFIX + entryUri, previous.getProperty(USED_KEY_PREFIX + entryUri));
+                profile.setProperty(KEYS_KEY_PREFIX + entryUri, previous.getProperty(KEYS_KEY_PREFIX + entryUri, ""));
+            }
+        }
+
+        Files.createDirectories(profileFile.getParent());
+        Path tmpPath = Files.createTempFile(profileFile.getParent(), profileFile.getFileName().toString(), ".tmp");
+        try
+        {
+            try (Writer writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8))
+            {
+                profile.store(writer, "KeepassXC property agent entry access profile, delete to read all entries again");
+            }
+            Files.move(tmpPath, profileFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    /**
+     * Registers a shutdown hook that saves the profile when the JVM exits.
+     *
+     * @param entryUris the configured entry URIs.
+     */
+    public void saveOnExit(List<String> entryUris)
+    {
+        List<String> entryUrisToSave = List.copyOf(entryUris);
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            try
+            {
+                save(entryUrisToSave);
+            }
+            catch (IOException e)
+            {
+                log("Failed to save entry access profile " + profileFile + ": " + e, e);
+            }
+        }, "keepassxc-entry-access-profile"));
+    }
+}
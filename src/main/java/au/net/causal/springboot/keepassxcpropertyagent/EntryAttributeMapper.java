@@ -0,0 +1,85 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
+
+/**
+ * Converts attributes of a KeePass entry into Spring properties.  Attributes that start with the property prefix become
+ * single properties, and attributes that start with a block prefix are expanded into multiple properties.
+ */
+public class EntryAttributeMapper
+{
+    private final AgentConfiguration settings;
+
+    public EntryAttributeMapper(AgentConfiguration settings)
+    {
+        this.settings = Objects.requireNonNull(settings);
+    }
+
+    /**
+     * Adds properties for all prefixed attributes of an entry.  Attributes without a recognized prefix are ignored.
+     *
+     * @param entryName the name of the entry, used for error messages.
+     * @param attributes the entry's attributes.
+     * @param valueMap the map to add properties to.
+     */
+    public void mapAttributes(String entryName, Map<String, ?> attributes, Map<String, Object> valueMap)
+    {
+        attributes.forEach((k, v) ->
+        {
+            if (k.startsWith(settings.getPropertyPrefix()))
+            {
+                String key = k.substring(settings.getPropertyPrefix().length()).trim();
+                Object value = v;
+                if (value instanceof String)
+                    value = value.toString().trim();
+
+                if (value != null)
+                    valueMap.put(key, value);
+            }
+            else if (k.startsWith(settings.getPropertiesBlockPrefix()) && v != null)
+                expandBlock(entryName, k, settings.getPropertiesBlockPrefix(), v.toString(), PropertyBlockParser::parseProperties, valueMap);
+            else if (k.startsWith(settings.getYamlBlockPrefix()) && v != null)
+                expandBlock(entryName, k, settings.getYamlBlockPrefix(), v.toString(), PropertyBlockParser::parseYaml, valueMap);
+        });
+    }
+
+    /**
+     * Expands an attribute whose value is a block of properties into multiple properties.  If the attribute name has
+     * anything after the block prefix, it is used as a prefix for the expanded property names.
+     *
+     * @param entryName the name of the entry the attribute is from, used for error messages.
+     * @param attributeName the full name of the attribute.
+     * @param blockPrefix the block prefix the attribute name starts with.
+     * @param block the attribute value.
+     * @param parser parses the block into flattened properties.
+     * @param valueMap the map to add expanded properties to.
+     */
+    private void expandBlock(String entryName, String attributeName, String blockPrefix, String block,
+                             Function<String, Map<String, String>> parser, Map<String, Object> valueMap)
+    {
+        Map<String, String> blockProperties;
+        try
+        {
+            blockProperties = parser.apply(block);
+        }
+        catch (IllegalArgumentException e)
+        {
+            log("Failed to parse attribute '" + attributeName + "' of KeePass entry " + entryName + ": " + e.getMessage());
+            return;
+        }
+
+        //Values are used as parsed, whitespace in them is either quoted or kept by block scalar chomping on purpose
+        String keyPrefix = attributeName.substring(blockPrefix.length()).trim();
+        blockProperties.forEach((key, value) ->
+        {
+            if (keyPrefix.isEmpty())
+                valueMap.put(key.trim(), value);
+            else
+                valueMap.put(keyPrefix + "." + key.trim(), value);
+        });
+    }
+}
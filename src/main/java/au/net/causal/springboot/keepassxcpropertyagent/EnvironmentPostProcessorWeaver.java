@@ -0,0 +1,86 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Weaves Spring Boot's <code>EnvironmentPostProcessorApplicationListener</code> so that the 'keepassxc' property
+ * source is added to the environment when it is prepared.
+ * <p>
+ *
+ * This is the only class in the agent that uses Javassist, so Javassist is only loaded when weaving actually needs to
+ * happen.  It is loaded in the {@linkplain IsolatedClientLoader isolated client} so Javassist can be unloaded again
+ * afterwards.
+ */
+public class EnvironmentPostProcessorWeaver implements ClassWeaver
+{
+    /**
+     * Internal name of the class that is woven.
+     */
+    public static final String TARGET_CLASS_NAME = "org/springframework/boot/env/EnvironmentPostProcessorApplicationListener";
+
+    /**
+     * Weaves the listener class.
+     *
+     * @param loader the class loader that is loading the listener class.
+     * @param classfileBuffer the original bytecode of the listener class.
+     *
+     * @return the woven bytecode.
+     *
+     * @throws IOException if an error occurs reading or writing bytecode, if the woven code fails to compile or if
+     *                     the listener class does not have the expected method.
+     */
+    @Override
+    public byte[] weave(ClassLoader loader, byte[] classfileBuffer)
+    throws IOException
+    {
+        ClassPool classPool = new ClassPool(null);
+        classPool.appendClassPath(new LoaderClassPath(loader));
+
+        CtClass ctClass = classPool.makeClass(new ByteArrayInputStream(classfileBuffer));
+
+        try
+        {
+            CtMethod onApplicationEventMethod = ctClass.getDeclaredMethod("onApplicationEvent");
+            transformOnApplicationEventMethod(onApplicationEventMethod);
+
+            return ctClass.toBytecode();
+        }
+        catch (CannotCompileException | NotFoundException e)
+        {
+            throw new IOException("Failed to weave " + ctClass.getName() + ": " + e, e);
+        }
+        finally
+        {
+            ctClass.detach();
+        }
+    }
+
+    private void transformOnApplicationEventMethod(CtMethod m)
+    throws CannotCompileException
+    {
+        m.insertBefore("""
+            if ($1 instanceof org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent)
+            {
+                org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent event = (org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent)$1;
+                org.springframework.core.env.MutablePropertySources sources = event.getEnvironment().getPropertySources();
+                java.util.Map map = au.net.causal.springboot.keepassxcpropertyagent.KeePassXCPropertyAgent.createPropertySourceMap();
+                if (sources.contains(org.springframework.core.env.CommandLinePropertySource.COMMAND_LINE_PROPERTY_SOURCE_NAME))
+                {
+                    sources.addAfter(org.springframework.core.env.CommandLinePropertySource.COMMAND_LINE_PROPERTY_SOURCE_NAME, new org.springframework.core.env.MapPropertySource("keepassxc", map));
+                }
+                else
+                {
+                    sources.addFirst(new org.springframework.core.env.MapPropertySource("keepassxc", map));
+                }
+            }
+        """);
+    }
+}
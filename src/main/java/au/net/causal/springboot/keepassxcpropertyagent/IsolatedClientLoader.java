@@ -0,0 +1,253 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import au.net.causal.springboot.keepassxcpropertyagent.logging.Logging;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
+
+/**
+ * Loads the agent's KeepassXC client and weaving classes, along with the libraries they use, in a class loader
+ * separate from the one the agent is loaded in.  Once nothing is using the client any more, every reference to its
+ * class loader is dropped so that its classes can be unloaded instead of using metaspace for the life of the
+ * application.  If the client is needed again later, such as for reading an entry lazily, a new class loader is created.
+ * <p>
+ *
+ * The client class loader loads classes from the agent JAR itself.  Only the types that the agent and the client use
+ * to talk to each other are shared from the agent's class loader.
+ */
+public class IsolatedClientLoader
+{
+    /**
+     * Classes that are always loaded from the agent's class loader so that both sides see the same types.
+     */
+    private static final Set<String> SHARED_CLASS_NAMES = Set.of(
+            AgentConfiguration.class.getName(),
+            PropertyReader.class.getName(),
+            ClassWeaver.class.getName(),
+            KdbxEntryIndex.class.getName(),
+            Logging.class.getName()
+    );
+
+    private final AgentConfiguration config;
+    private final URL agentLocation;
+    private final ClassLoader agentClassLoader;
+    private final boolean isolated;
+
+    private final Map<String, Object> instances = new HashMap<>();
+    private ClientClassLoader clientClassLoader;
+    private int users;
+
+    /**
+     * Creates a client loader.
+     *
+     * @param config agent configuration, passed to client classes that take it in their constructor.
+     * @param agentLocation location of the agent JAR that client classes are loaded from.
+     * @param agentClassLoader the class loader the agent is loaded in.
+     * @param isolated if true, client classes are loaded in their own class loader that is discarded when not in use.
+     *                 If false, client classes are loaded from the agent's class loader and stay loaded.
+     */
+    public IsolatedClientLoader(AgentConfiguration config, URL agentLocation, ClassLoader agentClassLoader, boolean isolated)
+    {
+        this.config = Objects.requireNonNull(config);
+        this.agentLocation = Objects.requireNonNull(agentLocation);
+        this.agentClassLoader = Objects.requireNonNull(agentClassLoader);
+        this.isolated = isolated;
+    }
+
+    /**
+     * Registers a user of the client.  The client class loader is kept until every user has called {@link #release()}.
+     */
+    public synchronized void acquire()
+    {
+        users++;
+    }
+
+    /**
+     * Unregisters a user of the client.  When there are no users left, the client class loader and all instances
+     * created from it are discarded.
+     */
+    public synchronized void release()
+    {
+        if (users <= 0)
+            throw new IllegalStateException("Client loader released more times than it was acquired");
+
+        users--;
+        if (users == 0 && isolated)
+        {
+            instances.clear();
+            if (clientClassLoader != null)
+            {
+                try
+                {
+                    clientClassLoader.close();
+                }
+                catch (IOException e)
+                {
+                    log("Error closing client class loader: " + e.getMessage(), e);
+                }
+                clientClassLoader = null;
+            }
+        }
+    }
+
+    /**
+     * Returns an instance of a client class, creating it the first time it is requested from the current client class
+     * loader.  Client classes must have either a public constructor that takes an {@link AgentConfiguration} or a public
+     * no-argument constructor.  The caller must have {@linkplain #acquire() acquired} the client and must not use the
+     * instance after releasing it.
+     *
+     * @param className the name of the client class.
+     * @param type the type the instance is used as, which must be one of the shared types.
+     * @param <T> the type the instance is used as.
+     *
+     * @return the instance.
+     *
+     * @throws ReflectiveOperationException if the client class cannot be loaded or instantiated.
+     */
+    public <T> T getInstance(String className, Class<T> type)
+    throws ReflectiveOperationException
+    {
+        return getInstance(className, type, null);
+    }
+
+    /**
+     * Returns an instance of a client class, creating it the first time it is requested from the current client class
+     * loader and passing it state that the agent keeps across client class loaders.  If the state is not null, the
+     * client class must have a public constructor that takes an {@link AgentConfiguration} and the state, whose type
+     * must be one of the shared types.  The caller must have {@linkplain #acquire() acquired} the client and must not
+     * use the instance after releasing it.
+     *
+     * @param className the name of the client class.
+     * @param type the type the instance is used as, which must be one of the shared types.
+     * @param sharedState state passed to the client class's constructor, or null to use the constructors that
+     *                    {@link #getInstance(String, Class)} uses.
+     * @param <T> the type the instance is used as.
+     *
+     * @return the instance.
+     *
+     * @throws ReflectiveOperationException if the client class cannot be loaded or instantiated.
+     */
+    public synchronized <T> T getInstance(String className, Class<T> type, Object sharedState)
+    throws ReflectiveOperationException
+    {
+        if (users <= 0)
+            throw new IllegalStateException("Client loader must be acquired before use");
+
+        Object instance = instances.get(className);
+        if (instance == null)
+        {
+            Class<?> clientClass = Class.forName(className, true, getClientClassLoader());
+            if (sharedState != null)
+                instance = clientClass.getConstructor(AgentConfiguration.class, sharedState.getClass()).newInstance(config, sharedState);
+            else
+            {
+                try
+                {
+                    instance = clientClass.getConstructor(AgentConfiguration.class).newInstance(config);
+                }
+                catch (NoSuchMethodException e)
+                {
+                    instance = clientClass.getConstructor().newInstance();
+                }
+            }
+            instances.put(className, instance);
+        }
+
+        return type.cast(instance);
+    }
+
+    private ClassLoader getClientClassLoader()
+    {
+        if (!isolated)
+            return agentClassLoader;
+
+        if (clientClassLoader == null)
+            clientClassLoader = new ClientClassLoader(agentLocation, agentClassLoader);
+
+        return clientClassLoader;
+    }
+
+    /**
+     * Copies an exception thrown from client code into one that does not reference any client classes, so that
+     * keeping hold of the exception, such as when failures are memoized, does not keep the client classes loaded.
+     * The message and stack trace are kept.
+     *
+     * @param e the exception thrown from client code.
+     *
+     * @return the copied exception.
+     */
+    public static IOException detachedException(Exception e)
+    {
+        IOException detached = new IOException(e instanceof IOException ? e.getMessage() : e.toString());
+        detached.setStackTrace(e.getStackTrace());
+        return detached;
+    }
+
+    /**
+     * Loads classes from the agent JAR, except for shared classes.  JDK classes come from the platform class loader,
+     * and anything not in the agent JAR, such as dependencies when running from an unpackaged build, falls back to
+     * the agent's class loader.
+     */
+    private static class ClientClassLoader extends URLClassLoader
+    {
+        static
+        {
+            ClassLoader.registerAsParallelCapable();
+        }
+
+        private final ClassLoader agentClassLoader;
+
+        public ClientClassLoader(URL agentLocation, ClassLoader agentClassLoader)
+        {
+            super("keepassxc-property-agent-client", new URL[] {agentLocation}, ClassLoader.getPlatformClassLoader());
+            this.agentClassLoader = agentClassLoader;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+        throws ClassNotFoundException
+        {
+            if (SHARED_CLASS_NAMES.contains(name))
+                return agentClassLoader.loadClass(name);
+
+            synchronized (getClassLoadingLock(name))
+            {
+                Class<?> c = findLoadedClass(name);
+                if (c == null)
+                {
+                    try
+                    {
+                        c = getParent().loadClass(name);
+                    }
+                    catch (ClassNotFoundException e)
+                    {
+                        //Not a JDK class
+                    }
+                }
+                if (c == null)
+                {
+                    try
+                    {
+                        c = findClass(name);
+                    }
+                    catch (ClassNotFoundException e)
+                    {
+                        c = agentClassLoader.loadClass(name);
+                    }
+                }
+
+                if (resolve)
+                    resolveClass(c);
+
+                return c;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Reads properties using a reader from the {@linkplain IsolatedClientLoader isolated client}.  The client is only held
+ * while reading, so this reader can be kept for the life of the application without keeping client classes loaded.
+ */
+public class IsolatedPropertyReader implements PropertyReader
+{
+    private final IsolatedClientLoader clientLoader;
+    private final String readerClassName;
+    private final Object sharedState;
+
+    /**
+     * Creates an isolated property reader.
+     *
+     * @param clientLoader the client loader the reader is created from.
+     * @param readerClassName the name of the {@link PropertyReader} implementation class in the client.
+     */
+    public IsolatedPropertyReader(IsolatedClientLoader clientLoader, String readerClassName)
+    {
+        this(clientLoader, readerClassName, null);
+    }
+
+    /**
+     * Creates an isolated property reader whose client reader is given state that outlives the client.
+     *
+     * @param clientLoader the client loader the reader is created from.
+     * @param readerClassName the name of the {@link PropertyReader} implementation class in the client.
+     * @param sharedState state passed to the client reader's constructor, or null if it does not need any.
+     *
+     * @see IsolatedClientLoader#getInstance(String, Class, Object)
+     */
+    public IsolatedPropertyReader(IsolatedClientLoader clientLoader, String readerClassName, Object sharedState)
+    {
+        this.clientLoader = Objects.requireNonNull(clientLoader);
+        this.readerClassName = Objects.requireNonNull(readerClassName);
+        this.sharedState = sharedState;
+    }
+
+    @Override
+    public void readProperties(String entryName, Map<String, Object> valueMap)
+    throws IOException
+    {
+        clientLoader.acquire();
+        try
+        {
+            clientLoader.getInstance(readerClassName, PropertyReader.class, sharedState).readProperties(entryName, valueMap);
+        }
+        catch (IOException | ReflectiveOperationException | RuntimeException e)
+        {
+            throw IsolatedClientLoader.detachedException(e);
+        }
+        finally
+        {
+            clientLoader.release();
+        }
+    }
+}
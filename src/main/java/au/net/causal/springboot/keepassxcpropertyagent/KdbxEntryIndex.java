@@ -0,0 +1,33 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the entries read from a KDBX file by {@link KdbxPropertyReader}.  The agent keeps the index outside the
+ * {@linkplain IsolatedClientLoader isolated client} so that when the client is discarded and later loaded again, the
+ * database does not need to be decrypted again, which with Argon2 can take a noticeable amount of time.
+ * <p>
+ *
+ * The index must only contain JDK types so that holding on to it does not keep any client classes loaded.
+ */
+public class KdbxEntryIndex
+{
+    private Map<String, List<Map<String, String>>> entries;
+
+    /**
+     * @return prefixed attributes of entries keyed by normalized URL, or null if the database has not been read yet.
+     */
+    public synchronized Map<String, List<Map<String, String>>> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @param entries prefixed attributes of entries keyed by normalized URL.
+     */
+    public synchronized void setEntries(Map<String, List<Map<String, String>>> entries)
+    {
+        this.entries = entries;
+    }
+}
@@ -0,0 +1,137 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import au.net.causal.springboot.keepassxcpropertyagent.kdbx.KdbxCredentials;
+import au.net.causal.springboot.keepassxcpropertyagent.kdbx.KdbxDatabase;
+import au.net.causal.springboot.keepassxcpropertyagent.kdbx.KdbxEntry;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
+
+/**
+ * Reads properties directly from a KDBX database file instead of going through KeepassXC.  The database is decrypted
+ * once, the first time properties are read, and entries are indexed by URL so reading an entry does not need to
+ * scan the database.  The index can be shared with later readers through a {@link KdbxEntryIndex}.
+ */
+public class KdbxPropertyReader implements PropertyReader
+{
+    /**
+     * Prefix of additional URL fields, as used by KeePass2Android and KeepassXC.
+     */
+    private static final String ADDITIONAL_URL_FIELD_PREFIX = "KP2A_URL";
+
+    private final AgentConfiguration settings;
+    private final EntryAttributeMapper attributeMapper;
+    private final KdbxEntryIndex entryIndex;
+
+    public KdbxPropertyReader(AgentConfiguration settings)
+    {
+        this(settings, new KdbxEntryIndex());
+    }
+
+    /**
+     * Creates a reader that uses an existing index, which is filled in the first time properties are read if the
+     * database has not already been read.
+     *
+     * @param settings agent configuration.
+     * @param entryIndex holds the entries read from the database.
+     */
+    public KdbxPropertyReader(AgentConfiguration settings, KdbxEntryIndex entryIndex)
+    {
+        this.settings = Objects.requireNonNull(settings);
+        this.attributeMapper = new EntryAttributeMapper(settings);
+        this.entryIndex = Objects.requireNonNull(entryIndex);
+    }
+
+    @Override
+    public void readProperties(String entryName, Map<String, Object> valueMap)
+    throws IOException
+    {
+        List<Map<String, String>> entries = getEntryIndex().get(normalizeUrl(entryName));
+        if (entries == null)
+        {
+            log("Entry not found for " + entryName);
+            return;
+        }
+
+        for (Map<String, String> entry : entries)
+        {
+            attributeMapper.mapAttributes(entryName, entry, valueMap);
+        }
+    }
+
+    private Map<String, List<Map<String, String>>> getEntryIndex()
+    throws IOException
+    {
+        synchronized (entryIndex)
+        {
+            Map<String, List<Map<String, String>>> entries = entryIndex.getEntries();
+            if (entries == null)
+            {
+                entries = readEntryIndex();
+                entryIndex.setEntries(entries);
+            }
+            return entries;
+        }
+    }
+
+    private Map<String, List<Map<String, String>>> readEntryIndex()
+    throws IOException
+    {
+        Path kdbxFile = settings.getKdbxFile();
+        log("Reading properties from KDBX file: " + kdbxFile);
+
+        String password = System.getenv(settings.getKdbxPasswordVariable());
+        if (password == null && settings.getKdbxKeyFile() == null)
+            throw new IOException("No password or key file for KDBX file " + kdbxFile + " - set the " + settings.getKdbxPasswordVariable() + " environment variable or configure a key file");
+
+        KdbxDatabase database = KdbxDatabase.open(kdbxFile, KdbxCredentials.compositeKey(password, settings.getKdbxKeyFile()));
+
+        Map<String, List<Map<String, String>>> index = new HashMap<>();
+        for (KdbxEntry entry : database.getEntries())
+        {
+            //Only keep attributes that can become properties, there is no need to hold on to anything else
+            Map<String, String> attributes = new LinkedHashMap<>();
+            entry.getStrings().forEach((key, value) ->
+            {
+                if (key.startsWith(settings.getPropertyPrefix()) ||
+                    key.startsWith(settings.getPropertiesBlockPrefix()) ||
+                    key.startsWith(settings.getYamlBlockPrefix()))
+                {
+                    attributes.put(key, value);
+                }
+            });
+            if (attributes.isEmpty())
+                continue;
+
+            entry.getStrings().forEach((key, value) ->
+            {
+                if ((KdbxEntry.URL_FIELD.equals(key) || key.startsWith(ADDITIONAL_URL_FIELD_PREFIX)) && !value.isBlank())
+                    index.computeIfAbsent(normalizeUrl(value), k -> new ArrayList<>()).add(attributes);
+            });
+        }
+
+        return index;
+    }
+
+    /**
+     * Normalizes a URL so that trivial differences such as case and trailing slashes do not affect matching.
+     */
+    private static String normalizeUrl(String url)
+    {
+        String normalized = url.trim().toLowerCase(Locale.ROOT);
+        while (normalized.endsWith("/"))
+        {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+}
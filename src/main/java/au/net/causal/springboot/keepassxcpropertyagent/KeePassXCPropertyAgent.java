@@ -1,32 +1,73 @@
 package au.net.causal.springboot.keepassxcpropertyagent;
 
-import javassist.CannotCompileException;
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtMethod;
-import javassist.LoaderClassPath;
+import au.net.causal.springboot.keepassxcpropertyagent.cds.CdsClassListRecorder;
 
-import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.net.URL;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
 
 public class KeePassXCPropertyAgent
 {
+    //Client classes are referenced by name so they are never loaded in the agent's class loader
+    private static final String WEAVER_CLASS_NAME = "au.net.causal.springboot.keepassxcpropertyagent.EnvironmentPostProcessorWeaver";
+    private static final String KEEPASSXC_READER_CLASS_NAME = "au.net.causal.springboot.keepassxcpropertyagent.KeepassXCPropertyReader";
+    private static final String KDBX_READER_CLASS_NAME = "au.net.causal.springboot.keepassxcpropertyagent.KdbxPropertyReader";
+
     private static AgentConfiguration config;
+    private static EntryAccessProfile accessProfile;
+    private static IsolatedClientLoader clientLoader;
+    private static PropertyReader propertyReader;
 
     public static void premain(String agentArgs, Instrumentation inst)
     {
         config = AgentConfiguration.parse(agentArgs);
+
+        //Classes from the isolated class loader can't be archived, so the class list would be missing most of the agent
+        if (config.getCdsClassListFile() != null && config.isIsolatedClassLoaderEnabled())
+        {
+            log("Recording a CDS class list, disabling the isolated class loader - also use isolatedClassLoader=false when running with the archive");
+            config.setIsolatedClassLoaderEnabled(false);
+        }
+
+        URL agentLocation = KeePassXCPropertyAgent.class.getProtectionDomain().getCodeSource().getLocation();
+        clientLoader = new IsolatedClientLoader(config, agentLocation, KeePassXCPropertyAgent.class.getClassLoader(), config.isIsolatedClassLoaderEnabled());
+
+        if (config.getCdsClassListFile() != null)
+        {
+            new CdsClassListRecorder(inst, config.getCdsClassListFile(), agentLocation).recordOnExit();
+        }
+
+        if (config.isAccessTrackingEnabled())
+        {
+            //Profiles are kept alongside the credentials store
+            Path profileDirectory = AgentConfiguration.AGENT_DIRECTORY.resolve(config.getCredentialsStoreFile()).toAbsolutePath().getParent().resolve("access-profiles");
+            accessProfile = EntryAccessProfile.load(profileDirectory.resolve(config.getAccessProfile() + ".properties"));
+            accessProfile.saveOnExit(config.getEntryUris());
+        }
+
         KeePassXCPropertyAgent agent = new KeePassXCPropertyAgent();
         agent.run(inst);
     }
 
     public void run(Instrumentation inst)
     {
+        WovenClassCache wovenClassCache = createWovenClassCache();
+
         inst.addTransformer(new ClassFileTransformer()
         {
             @Override
@@ -35,18 +76,20 @@ public class KeePassXCPropertyAgent
             {
                 try
                 {
-                    if ("org/springframework/boot/env/EnvironmentPostProcessorApplicationListener".equals(className))
+                    if (EnvironmentPostProcessorWeaver.TARGET_CLASS_NAME.equals(className))
                     {
-                        ClassPool classPool = new ClassPool(null);
-                        classPool.appendClassPath(new LoaderClassPath(loader));
+                        byte[] wovenBuffer = null;
+                        if (wovenClassCache != null)
+                            wovenBuffer = wovenClassCache.load(classfileBuffer);
 
-                        CtClass ctClass = classPool.makeClass(new ByteArrayInputStream(classfileBuffer));
+                        if (wovenBuffer == null)
+                        {
+                            wovenBuffer = weave(loader, classfileBuffer);
+                            if (wovenClassCache != null)
+                                wovenClassCache.save(classfileBuffer, wovenBuffer);
+                        }
 
-                        CtMethod onApplicationEventMethod = ctClass.getDeclaredMethod("onApplicationEvent");
-                        transformOnApplicationEventMethod(onApplicationEventMethod);
-
-                        classfileBuffer = ctClass.toBytecode();
-                        ctClass.detach();
+                        classfileBuffer = wovenBuffer;
                     }
                     else
                     {
@@ -65,43 +108,166 @@ public class KeePassXCPropertyAgent
         });
     }
 
-    private void transformOnApplicationEventMethod(CtMethod m)
-    throws CannotCompileException
+    /**
+     * Weaves a class using the weaver from the isolated client.
+     */
+    private byte[] weave(ClassLoader loader, byte[] classfileBuffer)
+    throws IOException, ReflectiveOperationException
+    {
+        clientLoader.acquire();
+        try
+        {
+            return clientLoader.getInstance(WEAVER_CLASS_NAME, ClassWeaver.class).weave(loader, classfileBuffer);
+        }
+        finally
+        {
+            clientLoader.release();
+        }
+    }
+
+    /**
+     * Creates the cache for woven bytecode.
+     *
+     * @return the cache, or null if caching is disabled or the agent version is not known, such as when running from
+     *         an unpackaged build.
+     */
+    private WovenClassCache createWovenClassCache()
     {
-        m.insertBefore("""
-            if ($1 instanceof org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent)
+        String agentVersion = KeePassXCPropertyAgent.class.getPackage().getImplementationVersion();
+        if (!config.isWovenClassCacheEnabled() || agentVersion == null)
+            return null;
+
+        byte[] weaverFingerprint;
+        try
+        {
+            weaverFingerprint = weaverFingerprint();
+        }
+        catch (IOException e)
+        {
+            log("Woven class cache disabled, failed to read agent classes: " + e, e);
+            return null;
+        }
+
+        return new WovenClassCache(AgentConfiguration.AGENT_DIRECTORY.resolve("woven-class-cache"), agentVersion, weaverFingerprint);
+    }
+
+    /**
+     * Digests the bytecode of the weaver, which determines the woven code, and of this class, which the woven code
+     * calls.  The classes are read as resources so the weaver class does not need to be loaded.
+     *
+     * @return the digest.
+     *
+     * @throws IOException if the bytecode of either class cannot be read.
+     */
+    private static byte[] weaverFingerprint()
+    throws IOException
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String className : List.of(WEAVER_CLASS_NAME, KeePassXCPropertyAgent.class.getName()))
             {
-                org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent event = (org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent)$1;
-                org.springframework.core.env.MutablePropertySources sources = event.getEnvironment().getPropertySources();
-                java.util.Map map = new java.util.LinkedHashMap();
-                au.net.causal.springboot.keepassxcpropertyagent.KeePassXCPropertyAgent.doKeepass(map);
-                if (sources.contains(org.springframework.core.env.CommandLinePropertySource.COMMAND_LINE_PROPERTY_SOURCE_NAME))
+                String resourceName = className.replace('.', '/') + ".class";
+                try (InputStream is = KeePassXCPropertyAgent.class.getClassLoader().getResourceAsStream(resourceName))
                 {
-                    sources.addAfter(org.springframework.core.env.CommandLinePropertySource.COMMAND_LINE_PROPERTY_SOURCE_NAME, new org.springframework.core.env.MapPropertySource("keepassxc", map));
-                }
-                else
-                {
-                    sources.addFirst(new org.springframework.core.env.MapPropertySource("keepassxc", map));
+                    if (is == null)
+                        throw new FileNotFoundException(resourceName);
+
+                    digest.update(is.readAllBytes());
                 }
             }
-        """);
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            //Every JVM is required to support SHA-256
+            throw new RuntimeException("SHA-256 not supported: " + e, e);
+        }
     }
 
-    public static void doKeepass(Map<String, Object> map)
+    /**
+     * Creates the map that backs the 'keepassxc' property source, reading properties from the configured entries.
+     * Entries that the access profile shows were not used on earlier runs are only fetched when needed.
+     *
+     * @return the property source map.
+     */
+    public static Map<String, Object> createPropertySourceMap()
     {
-        KeepassXCPropertyReader reader = new KeepassXCPropertyReader(config);
+        //Keep the client loaded for all the entries read up front, it is discarded once they have been read
+        clientLoader.acquire();
+        try
+        {
+            return createPropertySourceMap(new KeepassEntryCache(getPropertyReader()));
+        }
+        finally
+        {
+            clientLoader.release();
+        }
+    }
 
+    private static Map<String, Object> createPropertySourceMap(KeepassEntryCache entryCache)
+    {
+        List<String> eagerEntryUris = new ArrayList<>();
+        Map<String, Set<String>> lazyEntryKeys = new LinkedHashMap<>();
+        for (String entryUri : config.getEntryUris())
+        {
+            if (accessProfile != null && accessProfile.isLazy(entryUri))
+                lazyEntryKeys.put(entryUri, accessProfile.getKnownKeys(entryUri));
+            else
+                eagerEntryUris.add(entryUri);
+        }
+
+        Map<String, Map<String, Object>> loadedEntries = doKeepass(eagerEntryUris, entryCache);
+        if (accessProfile != null)
+            loadedEntries.forEach((entryUri, properties) -> accessProfile.recordLoaded(entryUri, properties.keySet()));
+
+        return new KeepassPropertySourceMap(config.getEntryUris(), loadedEntries, lazyEntryKeys, entryCache, accessProfile);
+    }
+
+    /**
+     * @return the reader used for reading entries, which reads from a KDBX file if one is configured and otherwise
+     *         from KeepassXC.  The same reader is shared by all Spring contexts.  Entries read from a KDBX file are kept
+     *         by the agent, so the file is only decrypted once even though the client is discarded between reads.
+     */
+    private static synchronized PropertyReader getPropertyReader()
+    {
+        if (propertyReader == null)
+        {
+            if (config.getKdbxFile() != null)
+                propertyReader = new IsolatedPropertyReader(clientLoader, KDBX_READER_CLASS_NAME, new KdbxEntryIndex());
+            else
+                propertyReader = new IsolatedPropertyReader(clientLoader, KEEPASSXC_READER_CLASS_NAME);
+        }
+
+        return propertyReader;
+    }
+
+    /**
+     * Reads properties from entries.  When multiple Spring contexts start in parallel, each entry is still only read
+     * from KeepassXC once since the entry cache shares reads of the same entry.  If an entry cannot be read, properties
+     * from the entries read before it are still used.
+     *
+     * @param entryUris URIs of the entries to read.
+     * @param entryCache cache used for reading entries.
+     *
+     * @return properties of each entry that was read, keyed by entry URI.
+     */
+    public static Map<String, Map<String, Object>> doKeepass(List<String> entryUris, KeepassEntryCache entryCache)
+    {
+        Map<String, Map<String, Object>> entries = new LinkedHashMap<>();
         try
         {
-            for (String entryUri : config.getEntryUris())
+            for (String entryUri : entryUris)
             {
-                reader.readProperties(entryUri, map);
+                entries.put(entryUri, entryCache.getEntryProperties(entryUri));
             }
         }
         catch (IOException e)
         {
-            System.err.println("Failed to read values from KeepassXC: " + e);
+            log("Failed to read values from KeepassXC: " + e);
         }
+
+        return entries;
     }
 
 }
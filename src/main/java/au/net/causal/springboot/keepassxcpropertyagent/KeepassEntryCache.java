@@ -0,0 +1,67 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memoizes properties read from KeepassXC entries so that each entry is only fetched once.  Concurrent requests for
+ * the same entry share a single fetch, including requests from other caches in the same JVM.
+ */
+public class KeepassEntryCache
+{
+    /**
+     * Shared between all caches so that Spring contexts starting in parallel in the same JVM share fetches of the same entry.
+     */
+    private static final SingleFlight<String, Map<String, Object>> entryFetches = new SingleFlight<>();
+
+    private final PropertyReader reader;
+    private final ConcurrentMap<String, CompletableFuture<Map<String, Object>>> entries = new ConcurrentHashMap<>();
+
+    public KeepassEntryCache(PropertyReader reader)
+    {
+        this.reader = Objects.requireNonNull(reader);
+    }
+
+    /**
+     * Reads properties from a KeepassXC entry, fetching the entry the first time it is requested.  Failures are also
+     * remembered so that an unavailable entry is not repeatedly requested.
+     *
+     * @param entryUri the URI of the entry to read.
+     *
+     * @return an unmodifiable map of properties from the entry.
+     *
+     * @throws IOException if an error occurs reading the entry.
+     */
+    public Map<String, Object> getEntryProperties(String entryUri)
+    throws IOException
+    {
+        CompletableFuture<Map<String, Object>> fetch = new CompletableFuture<>();
+        CompletableFuture<Map<String, Object>> existingFetch = entries.putIfAbsent(entryUri, fetch);
+
+        //Only the thread that registered the fetch performs it, everyone else waits for its result
+        if (existingFetch != null)
+            return SingleFlight.join(existingFetch);
+
+        try
+        {
+            fetch.complete(entryFetches.execute(entryUri, () ->
+            {
+                Map<String, Object> properties = new LinkedHashMap<>();
+                reader.readProperties(entryUri, properties);
+                return Collections.unmodifiableMap(properties);
+            }));
+        }
+        catch (IOException | RuntimeException e)
+        {
+            fetch.completeExceptionally(e);
+        }
+
+        return SingleFlight.join(fetch);
+    }
+}
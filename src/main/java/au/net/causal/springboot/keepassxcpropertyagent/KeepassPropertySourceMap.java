@@ -0,0 +1,316 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
+
+/**
+ * Backing map for the 'keepassxc' property source that is added to the Spring environment.
+ * <p>
+ *
+ * Contains the properties read from the configured KeepassXC entries, with properties from later entries taking
+ * precedence.  Configured entries may be loaded lazily, in which case only the names of their properties are known
+ * up front and the entry is fetched when one of those properties is first read.
+ * <p>
+ *
+ * Additionally, any property name in the form <code>keepassxc:&lt;entry URI&gt;#&lt;property name&gt;</code> is
+ * resolved by fetching the referenced entry the first time it is used, which allows placeholders such as
+ * <code>${keepassxc:spring://db#password}</code> to be used in application configuration.  Only the entries that are
+ * actually referenced are ever read from KeepassXC.  Reading such a property fails with an
+ * {@link IllegalStateException} if it cannot be resolved.
+ */
+public class KeepassPropertySourceMap extends AbstractMap<String, Object>
+{
+    /**
+     * Property name prefix for looking up properties from arbitrary KeepassXC entries.
+     */
+    public static final String LOOKUP_PREFIX = "keepassxc:";
+
+    private final List<String> entryUrisByPrecedence;
+    private final Map<String, Map<String, Object>> loadedEntries;
+    private final Map<String, Set<String>> lazyEntryKeys;
+    private final KeepassEntryCache entryCache;
+    private final EntryAccessProfile accessProfile;
+
+    private volatile Set<String> keys;
+
+    /**
+     * Creates the map.
+     *
+     * @param entryUris the configured entry URIs, in configuration order.
+     * @param loadedEntries properties of configured entries that have already been loaded, keyed by entry URI.
+     * @param lazyEntryKeys known property names of configured entries that will be loaded on demand, keyed by entry URI.
+     * @param entryCache used for loading lazy entries and looking up properties from entries referenced by name.
+     * @param accessProfile if not null, records which entries properties are read from.
+     */
+    public KeepassPropertySourceMap(List<String> entryUris, Map<String, Map<String, Object>> loadedEntries,
+                                    Map<String, Set<String>> lazyEntryKeys, KeepassEntryCache entryCache,
+                                    EntryAccessProfile accessProfile)
+    {
+        List<String> entryUrisByPrecedence = new ArrayList<>(entryUris);
+        Collections.reverse(entryUrisByPrecedence);
+        this.entryUrisByPrecedence = List.copyOf(entryUrisByPrecedence);
+        this.loadedEntries = new ConcurrentHashMap<>(loadedEntries);
+        this.lazyEntryKeys = new ConcurrentHashMap<>(lazyEntryKeys);
+        this.entryCache = Objects.requireNonNull(entryCache);
+        this.accessProfile = accessProfile;
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        return resolve(key, true);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        if (keySet().contains(key))
+            return true;
+
+        if (!(key instanceof String) || !((String)key).startsWith(LOOKUP_PREFIX))
+            return false;
+
+        try
+        {
+            lookup((String)key);
+            return true;
+        }
+        catch (IllegalStateException e)
+        {
+            return false;
+        }
+    }
+
+    private Object resolve(Object key, boolean recordAccess)
+    {
+        if (!(key instanceof String))
+            return null;
+
+        String name = (String)key;
+        for (String entryUri : entryUrisByPrecedence)
+        {
+            Map<String, Object> properties = loadedEntries.get(entryUri);
+            if (properties == null)
+            {
+                Set<String> lazyKeys = lazyEntryKeys.get(entryUri);
+                if (lazyKeys != null && lazyKeys.contains(name))
+                    properties = loadLazyEntry(entryUri);
+            }
+
+            Object value = (properties == null ? null : properties.get(name));
+            if (value != null)
+            {
+                if (recordAccess && accessProfile != null)
+                    accessProfile.recordAccess(entryUri);
+
+                return value;
+            }
+        }
+
+        if (name.startsWith(LOOKUP_PREFIX))
+            return lookup(name);
+
+        return null;
+    }
+
+    private Map<String, Object> loadLazyEntry(String entryUri)
+    {
+        Map<String, Object> properties;
+        try
+        {
+            properties = entryCache.getEntryProperties(entryUri);
+            if (accessProfile != null)
+                accessProfile.recordLoaded(entryUri, properties.keySet());
+        }
+        catch (IOException e)
+        {
+            log("Failed to read values from KeepassXC entry " + entryUri + ": " + e);
+            properties = Map.of();
+        }
+
+        loadedEntries.putIfAbsent(entryUri, properties);
+        lazyEntryKeys.remove(entryUri);
+
+        //Entry may have different properties to the ones that were known
+        keys = null;
+
+        return loadedEntries.get(entryUri);
+    }
+
+    /**
+     * Looks up a property from an entry referenced by name.  Rather than returning null, this fails when the property
+     * cannot be resolved, since Spring would otherwise treat everything after the first ':' of the placeholder as a
+     * default value and silently use the entry reference itself as the property value.
+     *
+     * @param key the full property name, starting with {@link #LOOKUP_PREFIX}.
+     *
+     * @return the property value.
+     *
+     * @throws IllegalStateException if the reference is malformed, the entry cannot be read or the entry does not
+     *                               have the property.
+     */
+    private Object lookup(String key)
+    {
+        String reference = key.substring(LOOKUP_PREFIX.length());
+        int separatorIndex = reference.lastIndexOf('#');
+        if (separatorIndex < 0)
+            throw new IllegalStateException("Invalid KeepassXC property reference '" + key + "', expected " + LOOKUP_PREFIX + "<entry URI>#<property name>");
+
+        String entryUri = reference.substring(0, separatorIndex);
+        String propertyName = reference.substring(separatorIndex + 1);
+
+        Map<String, Object> properties;
+        try
+        {
+            properties = entryCache.getEntryProperties(entryUri);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to read KeepassXC entry " + entryUri + " for property '" + propertyName + "': " + e.getMessage(), e);
+        }
+
+        Object value = properties.get(propertyName);
+        if (value == null)
+            throw new IllegalStateException("KeepassXC entry " + entryUri + " has no property '" + propertyName + "'");
+
+        return value;
+    }
+
+    /**
+     * Names of all properties from configured entries, including those of lazy entries that have not been loaded yet.
+     * Properties from entries referenced by name are resolved on demand by {@link #get(Object)} and are not included.
+     */
+    @Override
+    public Set<String> keySet()
+    {
+        Set<String> currentKeys = keys;
+        if (currentKeys == null)
+        {
+            Set<String> allKeys = new LinkedHashSet<>();
+            for (String entryUri : entryUrisByPrecedence)
+            {
+                Map<String, Object> properties = loadedEntries.get(entryUri);
+                if (properties != null)
+                    allKeys.addAll(properties.keySet());
+                else
+                    allKeys.addAll(lazyEntryKeys.getOrDefault(entryUri, Set.of()));
+            }
+            currentKeys = Collections.unmodifiableSet(allKeys);
+            keys = currentKeys;
+        }
+        return currentKeys;
+    }
+
+    /**
+     * Entries for all names in {@link #keySet()}.  Iterating over these does not load lazy entries, their values are
+     * only resolved, and lazy entries loaded, when {@link Entry#getValue()} is called.  Values read this way are not
+     * recorded as reading the properties.
+     */
+    @Override
+    public Set<Entry<String, Object>> entrySet()
+    {
+        return new AbstractSet<>()
+        {
+            @Override
+            public Iterator<Entry<String, Object>> iterator()
+            {
+                Iterator<String> keyIterator = keySet().iterator();
+                return new Iterator<>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return keyIterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next()
+                    {
+                        return new PropertyEntry(keyIterator.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return keySet().size();
+            }
+        };
+    }
+
+    /**
+     * Only lists property names.  Values are left out since they are usually secrets, and resolving them would load
+     * lazy entries.
+     */
+    @Override
+    public String toString()
+    {
+        return keySet().toString();
+    }
+
+    /**
+     * Map entry that resolves its value when it is read.
+     */
+    private class PropertyEntry implements Entry<String, Object>
+    {
+        private final String key;
+
+        public PropertyEntry(String key)
+        {
+            this.key = key;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public Object getValue()
+        {
+            return resolve(key, false);
+        }
+
+        @Override
+        public Object setValue(Object value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Entry<?, ?>))
+                return false;
+
+            Entry<?, ?> other = (Entry<?, ?>)o;
+            return Objects.equals(key, other.getKey()) && Objects.equals(getValue(), other.getValue());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(key) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString()
+        {
+            return key + "=" + getValue();
+        }
+    }
+}
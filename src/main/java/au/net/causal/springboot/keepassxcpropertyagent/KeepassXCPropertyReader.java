@@ -21,24 +21,47 @@ import java.util.Objects;
 
 import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
 
-public class KeepassXCPropertyReader
+public class KeepassXCPropertyReader implements PropertyReader
 {
-    private static final Path CREDENTIALS_STORE_BASE_DIRECTORY = Path.of(System.getProperty("user.home"), ".spring-boot-keepassxc-property-agent");
-
     private final Clock clock = Clock.systemUTC();
 
     private final AgentConfiguration settings;
+    private final EntryAttributeMapper attributeMapper;
 
     public KeepassXCPropertyReader(AgentConfiguration settings)
     {
         this.settings = Objects.requireNonNull(settings);
+        this.attributeMapper = new EntryAttributeMapper(settings);
     }
 
     private KeepassProxy connectKeepassProxy(KeepassCredentialsStore credentialsStore)
     throws IOException
     {
         KeepassProxy kpa = new KeepassProxy(credentialsStore);
+        try
+        {
+            connectAndUnlock(kpa);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            //Don't leave the connection open, it would keep the client loaded for the life of the application
+            try
+            {
+                kpa.close();
+            }
+            catch (RuntimeException closeException)
+            {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
 
+        return kpa;
+    }
+
+    private void connectAndUnlock(KeepassProxy kpa)
+    throws IOException
+    {
         tryRepeat(settings,
                   "Agent needs to read passwords from KeepassXC, please start KeepassXC, ensure the 'Browser Extensions' option is enabled and open your database",
                   "Failed to connect to KeepassXC",
@@ -57,8 +80,6 @@ public class KeepassXCPropertyReader
             if (!iConnected)
                 throw new IOException("Could not connect to KeepassXC");
         });
-
-        return kpa;
     }
 
     /**
@@ -131,11 +152,12 @@ public class KeepassXCPropertyReader
     protected KeepassCredentialsStore createCredentialsStore()
     {
         //May be absolute, but if relative resolve from the .m2 directory
-        Path credentialsStoreFile = CREDENTIALS_STORE_BASE_DIRECTORY.resolve(settings.getCredentialsStoreFile());
+        Path credentialsStoreFile = AgentConfiguration.AGENT_DIRECTORY.resolve(settings.getCredentialsStoreFile());
 
         return new StandardKeepassCredentialsStore(credentialsStoreFile);
     }
 
+    @Override
     public void readProperties(String entryName, Map<String, Object> valueMap)
     throws IOException
     {
@@ -168,19 +190,7 @@ public class KeepassXCPropertyReader
 
             for (KeepassEntry entry : entries)
             {
-                entry.getStringFields().forEach((k, v) ->
-                {
-                    if (k.startsWith(settings.getPropertyPrefix()))
-                    {
-                        String key = k.substring(settings.getPropertyPrefix().length()).trim();
-                        Object value = v;
-                        if (value instanceof String)
-                            value = value.toString().trim();
-
-                        if (value != null)
-                            valueMap.put(key, value);
-                    }
-                });
+                attributeMapper.mapAttributes(entryName, entry.getStringFields(), valueMap);
             }
         }
         catch (KeepassProxyAccessException e)
@@ -0,0 +1,576 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Parses blocks of properties stored in a single KeepassXC attribute into flattened Spring property names.
+ * <p>
+ *
+ * Both Java properties and YAML blocks are supported.  The YAML support covers the subset of YAML that is normally
+ * used for Spring configuration: nested mappings, sequences, plain and quoted scalars, literal and folded block
+ * scalars and simple flow sequences.  YAML is flattened the same way Spring does, so nested mappings become
+ * dot-separated names and sequence items are indexed, such as <code>servers[0].host</code>.
+ */
+public final class PropertyBlockParser
+{
+    private PropertyBlockParser()
+    {
+    }
+
+    /**
+     * Parses a block in Java properties format.
+     *
+     * @param block the properties block.
+     *
+     * @return parsed properties.
+     *
+     * @throws IllegalArgumentException if the block is malformed.
+     */
+    public static Map<String, String> parseProperties(String block)
+    {
+        Properties properties = new Properties();
+        try
+        {
+            properties.load(new StringReader(block));
+        }
+        catch (IOException e)
+        {
+            //Never happens with a string reader, but malformed unicode escapes come through as IllegalArgumentException
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String name : properties.stringPropertyNames())
+        {
+            result.put(name, properties.getProperty(name));
+        }
+        return result;
+    }
+
+    /**
+     * Parses a YAML block, flattening it into Spring property names.
+     *
+     * @param block the YAML block.
+     *
+     * @return flattened properties.
+     *
+     * @throws IllegalArgumentException if the block is malformed or uses unsupported YAML features.
+     */
+    public static Map<String, String> parseYaml(String block)
+    {
+        try
+        {
+            return new YamlParser(block).parse();
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            //Anything else is a parser bug triggered by unusual input, still report it as malformed input
+            throw new IllegalArgumentException("Failed to parse YAML: " + e, e);
+        }
+    }
+
+    /**
+     * A line of YAML with its indentation separated from its content.
+     */
+    private static record YamlLine(int number, int indent, String text)
+    {
+    }
+
+    private static class YamlParser
+    {
+        /**
+         * Indentation of lines that are indented with tabs, which never matches the indentation of any structure.
+         */
+        private static final int TAB_INDENTED = -1;
+
+        private final List<YamlLine> lines = new ArrayList<>();
+        private final List<String> rawLines;
+        private final boolean endsWithLineBreak;
+        private final Map<String, String> result = new LinkedHashMap<>();
+        private int position;
+
+        public YamlParser(String block)
+        {
+            rawLines = block.lines().toList();
+            endsWithLineBreak = block.endsWith("\n") || block.endsWith("\r");
+            for (int i = 0; i < rawLines.size(); i++)
+            {
+                String rawLine = rawLines.get(i);
+                String text = rawLine.strip();
+                if (text.isEmpty() || text.startsWith("#") || text.equals("---"))
+                    continue;
+
+                int indent = 0;
+                while (rawLine.charAt(indent) == ' ')
+                {
+                    indent++;
+                }
+                //Tabs are allowed in block scalar content, so only fail if the line turns out not to be part of one
+                if (rawLine.charAt(indent) == '\t')
+                    indent = TAB_INDENTED;
+
+                lines.add(new YamlLine(i, indent, text));
+            }
+        }
+
+        public Map<String, String> parse()
+        {
+            if (!lines.isEmpty())
+            {
+                YamlLine first = lines.get(0);
+                if (isSequenceItem(first.text()))
+                    throw new IllegalArgumentException("Top level of YAML must be a mapping (line " + (first.number() + 1) + ")");
+
+                parseMapping(first.indent(), "");
+                if (position < lines.size())
+                    throw unexpectedIndentation(lines.get(position));
+            }
+            return result;
+        }
+
+        private IllegalArgumentException unexpectedIndentation(YamlLine line)
+        {
+            if (line.indent() == TAB_INDENTED)
+                return new IllegalArgumentException("Tabs cannot be used for indentation in YAML (line " + (line.number() + 1) + ")");
+
+            return new IllegalArgumentException("Unexpected indentation in YAML (line " + (line.number() + 1) + ")");
+        }
+
+        private static boolean isSequenceItem(String text)
+        {
+            return text.equals("-") || text.startsWith("- ");
+        }
+
+        private void parseMapping(int indent, String path)
+        {
+            while (position < lines.size() && lines.get(position).indent() == indent && !isSequenceItem(lines.get(position).text()))
+            {
+                YamlLine line = lines.get(position);
+                int separatorIndex = findMappingSeparator(line.text());
+                if (separatorIndex < 0)
+                    throw new IllegalArgumentException("Expected 'key: value' in YAML (line " + (line.number() + 1) + ")");
+
+                String key = unquote(line.text().substring(0, separatorIndex).strip());
+                String value = stripComment(line.text().substring(separatorIndex + 1)).strip();
+                position++;
+
+                parseValue(indent, childPath(path, key), value, true);
+            }
+        }
+
+        private void parseSequence(int indent, String path)
+        {
+            int index = 0;
+            while (position < lines.size() && lines.get(position).indent() == indent && isSequenceItem(lines.get(position).text()))
+            {
+                YamlLine line = lines.get(position);
+                String itemPath = path + "[" + index + "]";
+                String content = line.text().substring(1).stripLeading();
+                if (content.isEmpty() || content.startsWith("#"))
+                {
+                    position++;
+                    parseValue(indent, itemPath, "", false);
+                }
+                else if (findMappingSeparator(content) >= 0)
+                {
+                    //Mapping inside a sequence item, treat the content as the first line of a mapping indented to where it starts
+                    int contentIndent = indent + line.text().indexOf(content);
+                    lines.set(position, new YamlLine(line.number(), contentIndent, content));
+                    parseMapping(contentIndent, itemPath);
+                }
+                else
+                {
+                    position++;
+                    parseValue(indent, itemPath, stripComment(content).strip(), false);
+                }
+                index++;
+            }
+        }
+
+        /**
+         * Parses the value of a mapping key or sequence item.
+         *
+         * @param indent indentation of the line owning the value.
+         * @param path flattened property name of the value.
+         * @param value the inline value, or empty if the value is on following lines.
+         * @param allowSameIndentSequence whether a sequence at the same indentation as the owning line is allowed, which is
+         *                                the case for mapping values.
+         */
+        private void parseValue(int indent, String path, String value, boolean allowSameIndentSequence)
+        {
+            if (value.startsWith("|") || value.startsWith(">"))
+            {
+                result.put(path, parseBlockScalar(indent, value));
+                return;
+            }
+            else if (!value.isEmpty())
+            {
+                parseInlineValue(path, value);
+                return;
+            }
+
+            if (position < lines.size())
+            {
+                YamlLine next = lines.get(position);
+                if (next.indent() > indent)
+                {
+                    if (isSequenceItem(next.text()))
+                        parseSequence(next.indent(), path);
+                    else
+                        parseMapping(next.indent(), path);
+                    return;
+                }
+                else if (allowSameIndentSequence && next.indent() == indent && isSequenceItem(next.text()))
+                {
+                    parseSequence(indent, path);
+                    return;
+                }
+            }
+
+            //No value at all, Spring treats this as an empty string
+            result.put(path, "");
+        }
+
+        private void parseInlineValue(String path, String value)
+        {
+            if (value.startsWith("[") && value.endsWith("]"))
+            {
+                List<String> items = splitFlowSequence(path, value.substring(1, value.length() - 1));
+                if (!items.isEmpty())
+                {
+                    for (int i = 0; i < items.size(); i++)
+                    {
+                        result.put(path + "[" + i + "]", items.get(i));
+                    }
+                }
+                else
+                    result.put(path, "");
+            }
+            else if (value.startsWith("{"))
+                throw new IllegalArgumentException("YAML flow mappings are not supported (" + path + ")");
+            else
+                result.put(path, unquote(value));
+        }
+
+        /**
+         * Splits the content of a flow sequence into its unquoted items.  Commas inside quoted items do not separate
+         * items.
+         *
+         * @param path flattened property name of the sequence, used for error messages.
+         * @param content the content between the sequence's brackets.
+         *
+         * @return the items.
+         */
+        private static List<String> splitFlowSequence(String path, String content)
+        {
+            List<String> items = new ArrayList<>();
+            int i = 0;
+            while (true)
+            {
+                while (i < content.length() && content.charAt(i) == ' ')
+                {
+                    i++;
+                }
+                if (i >= content.length())
+                {
+                    //Trailing comma is allowed
+                    return items;
+                }
+
+                char c = content.charAt(i);
+                int itemEnd;
+                if (c == '"' || c == '\'')
+                {
+                    int closingQuote = findClosingQuote(content, i);
+                    if (closingQuote < 0)
+                        throw new IllegalArgumentException("Unterminated quoted item in YAML flow sequence (" + path + ")");
+
+                    items.add(unquote(content.substring(i, closingQuote + 1)));
+                    itemEnd = content.indexOf(',', closingQuote);
+                    String trailing = content.substring(closingQuote + 1, itemEnd < 0 ? content.length() : itemEnd);
+                    if (!trailing.isBlank())
+                        throw new IllegalArgumentException("Unexpected content after quoted item in YAML flow sequence (" + path + ")");
+                }
+                else if (c == ',')
+                    throw new IllegalArgumentException("Empty item in YAML flow sequence (" + path + ")");
+                else if (c == '[' || c == '{')
+                    throw new IllegalArgumentException("Nested YAML flow collections are not supported (" + path + ")");
+                else
+                {
+                    itemEnd = content.indexOf(',', i);
+                    items.add(unquote(content.substring(i, itemEnd < 0 ? content.length() : itemEnd).strip()));
+                }
+
+                if (itemEnd < 0)
+                    return items;
+
+                i = itemEnd + 1;
+            }
+        }
+
+        /**
+         * Finds the quote that closes a quoted scalar.
+         *
+         * @param text text containing the quoted scalar.
+         * @param start index of the opening quote.
+         *
+         * @return the index of the closing quote, or -1 if the scalar is not terminated.
+         */
+        private static int findClosingQuote(String text, int start)
+        {
+            char quote = text.charAt(start);
+            for (int i = start + 1; i < text.length(); i++)
+            {
+                char c = text.charAt(i);
+                if (quote == '"' && c == '\\')
+                    i++;
+                else if (c == quote)
+                {
+                    //Doubled single quote is an escaped single quote
+                    if (quote == '\'' && i + 1 < text.length() && text.charAt(i + 1) == '\'')
+                        i++;
+                    else
+                        return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Parses a literal or folded block scalar, following the YAML rules for indentation indicators, line folding
+         * and chomping.
+         *
+         * @param indent indentation of the line owning the block scalar.
+         * @param header the block scalar header, such as <code>|</code> or <code>&gt;2-</code>.
+         */
+        private String parseBlockScalar(int indent, String header)
+        {
+            boolean folded = header.startsWith(">");
+            boolean keepTrailing = false;
+            boolean stripTrailing = false;
+            int indentationIndicator = 0;
+            for (int i = 1; i < header.length(); i++)
+            {
+                char c = header.charAt(i);
+                if (c == '+' && !keepTrailing && !stripTrailing)
+                    keepTrailing = true;
+                else if (c == '-' && !keepTrailing && !stripTrailing)
+                    stripTrailing = true;
+                else if (c >= '1' && c <= '9' && indentationIndicator == 0)
+                    indentationIndicator = c - '0';
+                else
+                    throw new IllegalArgumentException("Invalid YAML block scalar header '" + header + "' (line " + (lines.get(position - 1).number() + 1) + ")");
+            }
+
+            //Block scalar content uses the raw lines since blank lines and '#' are content
+            int startLine = lines.get(position - 1).number() + 1;
+            int endLine = startLine;
+            int contentIndent = indentationIndicator > 0 ? indent + indentationIndicator : -1;
+            while (endLine < rawLines.size())
+            {
+                String rawLine = rawLines.get(endLine);
+                if (!rawLine.isBlank())
+                {
+                    //Only spaces are indentation, a tab after them is content
+                    int lineIndent = 0;
+                    while (rawLine.charAt(lineIndent) == ' ')
+                    {
+                        lineIndent++;
+                    }
+                    if (lineIndent <= indent || (contentIndent >= 0 && lineIndent < contentIndent))
+                        break;
+                    if (contentIndent < 0)
+                        contentIndent = lineIndent;
+                }
+                endLine++;
+            }
+
+            //Skip the parsed lines that were part of the block
+            while (position < lines.size() && lines.get(position).number() < endLine)
+            {
+                position++;
+            }
+
+            //Lines that only have whitespace up to the content indentation are empty, anything more is content
+            List<String> content = new ArrayList<>();
+            for (int i = startLine; i < endLine; i++)
+            {
+                String rawLine = rawLines.get(i);
+                if (contentIndent < 0 || rawLine.length() <= contentIndent)
+                    content.add(null);
+                else
+                    content.add(rawLine.substring(contentIndent));
+            }
+            int lastTextLine = content.size() - 1;
+            while (lastTextLine >= 0 && content.get(lastTextLine) == null)
+            {
+                lastTextLine--;
+            }
+
+            StringBuilder buf = new StringBuilder();
+            String previousText = null;
+            int emptyLines = 0;
+            for (int i = 0; i <= lastTextLine; i++)
+            {
+                String text = content.get(i);
+                if (text == null)
+                {
+                    emptyLines++;
+                    continue;
+                }
+
+                if (previousText != null)
+                {
+                    //In folded scalars, a line break between two lines that are not more indented becomes a space,
+                    //or is dropped if there are empty lines between them.  Otherwise line breaks are kept.
+                    boolean fold = folded && !isMoreIndented(previousText) && !isMoreIndented(text);
+                    if (!fold)
+                        buf.append('\n');
+                    else if (emptyLines == 0)
+                        buf.append(' ');
+                }
+                buf.append("\n".repeat(emptyLines));
+                buf.append(text);
+                previousText = text;
+                emptyLines = 0;
+            }
+
+            if (stripTrailing)
+                return buf.toString();
+
+            //Clip keeps the final line break, keep also keeps the empty lines after it
+            int finalLine = startLine + lastTextLine;
+            if (lastTextLine >= 0 && hasLineBreak(finalLine))
+                buf.append('\n');
+            if (keepTrailing)
+            {
+                for (int i = finalLine + 1; i < endLine; i++)
+                {
+                    if (hasLineBreak(i))
+                        buf.append('\n');
+                }
+            }
+            return buf.toString();
+        }
+
+        private static boolean isMoreIndented(String text)
+        {
+            return text.startsWith(" ") || text.startsWith("\t");
+        }
+
+        /**
+         * @return true if a raw line is followed by a line break, which is only not the case for the last line of a
+         *         block that does not end with one.
+         */
+        private boolean hasLineBreak(int rawLineIndex)
+        {
+            return rawLineIndex < rawLines.size() - 1 || endsWithLineBreak;
+        }
+
+        private static String childPath(String path, String key)
+        {
+            if (path.isEmpty())
+                return key;
+            else
+                return path + "." + key;
+        }
+
+        /**
+         * Finds the ':' that separates a key from its value, ignoring any in quoted keys.
+         *
+         * @return the index of the separator, or -1 if the text is not a key/value pair.
+         */
+        private static int findMappingSeparator(String text)
+        {
+            int start = 0;
+            if (text.startsWith("\"") || text.startsWith("'"))
+            {
+                start = text.indexOf(text.charAt(0), 1);
+                if (start < 0)
+                    return -1;
+            }
+
+            for (int i = start; i < text.length(); i++)
+            {
+                if (text.charAt(i) == ':' && (i + 1 == text.length() || text.charAt(i + 1) == ' '))
+                    return i;
+                if (text.charAt(i) == '#' && i > 0 && text.charAt(i - 1) == ' ')
+                    return -1;
+            }
+            return -1;
+        }
+
+        private static String stripComment(String value)
+        {
+            char quote = 0;
+            for (int i = 0; i < value.length(); i++)
+            {
+                char c = value.charAt(i);
+                if (quote == 0 && (c == '"' || c == '\'') && (i == 0 || " ,[".indexOf(value.charAt(i - 1)) >= 0))
+                    quote = c;
+                else if (quote == '"' && c == '\\')
+                    i++;
+                else if (quote == '\'' && c == '\'' && i + 1 < value.length() && value.charAt(i + 1) == '\'')
+                    i++;
+                else if (quote != 0 && c == quote)
+                    quote = 0;
+                else if (quote == 0 && c == '#' && (i == 0 || value.charAt(i - 1) == ' '))
+                    return value.substring(0, i);
+            }
+            return value;
+        }
+
+        private static String unquote(String value)
+        {
+            if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'"))
+                return value.substring(1, value.length() - 1).replace("''", "'");
+            else if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+                return unescape(value.substring(1, value.length() - 1));
+            else if (value.equals("~") || value.equals("null"))
+                return "";
+            else
+                return value;
+        }
+
+        private static String unescape(String value)
+        {
+            StringBuilder buf = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++)
+            {
+                char c = value.charAt(i);
+                if (c == '\\' && i + 1 < value.length())
+                {
+                    char escaped = value.charAt(++i);
+                    switch (escaped)
+                    {
+                        case 'n' -> buf.append('\n');
+                        case 't' -> buf.append('\t');
+                        case 'r' -> buf.append('\r');
+                        case '0' -> buf.append('\0');
+                        case 'u' ->
+                        {
+                            if (i + 4 >= value.length())
+                                throw new IllegalArgumentException("Invalid unicode escape in YAML string: " + value);
+                            buf.append((char)Integer.parseInt(value.substring(i + 1, i + 5), 16));
+                            i += 4;
+                        }
+                        default -> buf.append(escaped);
+                    }
+                }
+                else
+                    buf.append(c);
+            }
+            return buf.toString();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads Spring properties from KeePass entries.
+ */
+public interface PropertyReader
+{
+    /**
+     * Reads properties from the entries matching an entry URI.
+     *
+     * @param entryName the URI of the entries to read.
+     * @param valueMap the map to add properties to.
+     *
+     * @throws IOException if an error occurs reading entries.
+     */
+    public void readProperties(String entryName, Map<String, Object> valueMap)
+    throws IOException;
+}
@@ -0,0 +1,98 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coalesces concurrent calls for the same key so that only one of them does the work and the others share its result
+ * or failure.  Unlike a cache, a result is not kept once its call completes, so a later call for the same key does
+ * the work again.
+ *
+ * @param <K> key type.
+ * @param <V> result type.
+ */
+public class SingleFlight<K, V>
+{
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Executes a call, or if a call for the same key is already in progress in another thread, waits for that call
+     * and returns its result instead.
+     *
+     * @param key key identifying the work being done.
+     * @param call performs the work.
+     *
+     * @return the result of the call.
+     *
+     * @throws IOException if the call failed.
+     */
+    public V execute(K key, Call<V> call)
+    throws IOException
+    {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existingFlight = inFlight.putIfAbsent(key, flight);
+        if (existingFlight != null)
+            return join(existingFlight);
+
+        try
+        {
+            flight.complete(call.call());
+        }
+        catch (Throwable e)
+        {
+            flight.completeExceptionally(e);
+        }
+        finally
+        {
+            inFlight.remove(key, flight);
+        }
+
+        return join(flight);
+    }
+
+    /**
+     * Waits for a result, unwrapping any failure back into the exception originally thrown.
+     *
+     * @param future the future to wait for.
+     * @param <V> result type.
+     *
+     * @return the result.
+     *
+     * @throws IOException if the work failed with an IOException.
+     */
+    public static <V> V join(CompletableFuture<V> future)
+    throws IOException
+    {
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException e)
+        {
+            //Wrap IOExceptions so the stack trace of the waiting thread is kept
+            if (e.getCause() instanceof IOException)
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            else if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            else if (e.getCause() instanceof Error)
+                throw (Error)e.getCause();
+            else
+                throw e;
+        }
+    }
+
+    /**
+     * The work that is coalesced.
+     *
+     * @param <V> result type.
+     */
+    @FunctionalInterface
+    public static interface Call<V>
+    {
+        public V call()
+        throws IOException;
+    }
+}
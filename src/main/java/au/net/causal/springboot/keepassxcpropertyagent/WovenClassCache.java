@@ -0,0 +1,153 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Objects;
+
+import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
+
+/**
+ * Persistent cache of woven bytecode, so that weaving (and loading Javassist) can be skipped when the same original
+ * class is seen again on a later JVM start.
+ * <p>
+ *
+ * Cache entries are keyed by a SHA-256 digest of the agent version, the bytecode of the agent classes that determine
+ * what is woven and the original bytecode.  Including the agent's own bytecode means a rebuilt snapshot version of the
+ * agent with different weaving does not pick up stale woven classes.  Each cache file starts with this digest followed
+ * by the length of the woven bytecode, and is ignored if the digest does not match or the file does not contain a
+ * complete class file, in which case the class is woven again.
+ */
+public class WovenClassCache
+{
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int LENGTH_SIZE = 4;
+
+    private final Path cacheDirectory;
+    private final String agentVersion;
+    private final byte[] weaverFingerprint;
+
+    /**
+     * Creates the cache.
+     *
+     * @param cacheDirectory directory where cached bytecode is stored.
+     * @param agentVersion version of the agent, used as part of the cache key so that upgrading the agent invalidates
+     *                     previously woven bytecode.
+     * @param weaverFingerprint bytes identifying the weaving code and the code it calls, such as a digest of their
+     *                          bytecode, used as part of the cache key so that changing them invalidates previously
+     *                          woven bytecode.
+     */
+    public WovenClassCache(Path cacheDirectory, String agentVersion, byte[] weaverFingerprint)
+    {
+        this.cacheDirectory = Objects.requireNonNull(cacheDirectory);
+        this.agentVersion = Objects.requireNonNull(agentVersion);
+        this.weaverFingerprint = weaverFingerprint.clone();
+    }
+
+    private byte[] digest(byte[] originalBuffer)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digest.update(agentVersion.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)0);
+            digest.update(weaverFingerprint);
+            digest.update(originalBuffer);
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            //Every JVM is required to support SHA-256
+            throw new RuntimeException(DIGEST_ALGORITHM + " not supported: " + e, e);
+        }
+    }
+
+    private Path cacheFile(byte[] key)
+    {
+        return cacheDirectory.resolve(HexFormat.of().formatHex(key) + ".class");
+    }
+
+    /**
+     * Loads previously woven bytecode.
+     *
+     * @param originalBuffer the original bytecode of the class.
+     *
+     * @return the woven bytecode, or null if there is no valid cache entry for the original bytecode.
+     */
+    public byte[] load(byte[] originalBuffer)
+    {
+        byte[] key = digest(originalBuffer);
+        byte[] cached;
+        try
+        {
+            cached = Files.readAllBytes(cacheFile(key));
+        }
+        catch (NoSuchFileException e)
+        {
+            return null;
+        }
+        catch (IOException e)
+        {
+            log("Failed to read woven class cache: " + e, e);
+            return null;
+        }
+
+        //Must have the matching key followed by the length of the class file, checked to catch truncated files
+        int headerLength = key.length + LENGTH_SIZE;
+        if (cached.length <= headerLength + 4 || !Arrays.equals(cached, 0, key.length, key, 0, key.length))
+            return null;
+
+        int wovenLength = ByteBuffer.wrap(cached, key.length, LENGTH_SIZE).getInt();
+        if (wovenLength != cached.length - headerLength)
+            return null;
+
+        byte[] wovenBuffer = Arrays.copyOfRange(cached, headerLength, cached.length);
+        if ((wovenBuffer[0] & 0xFF) != 0xCA || (wovenBuffer[1] & 0xFF) != 0xFE || (wovenBuffer[2] & 0xFF) != 0xBA || (wovenBuffer[3] & 0xFF) != 0xBE)
+            return null;
+
+        return wovenBuffer;
+    }
+
+    /**
+     * Saves woven bytecode to the cache.  Failures are logged but otherwise ignored since the cache is only an
+     * optimization.
+     *
+     * @param originalBuffer the original bytecode of the class.
+     * @param wovenBuffer the woven bytecode to save.
+     */
+    public void save(byte[] originalBuffer, byte[] wovenBuffer)
+    {
+        byte[] key = digest(originalBuffer);
+        try
+        {
+            Files.createDirectories(cacheDirectory);
+            Path tmpPath = Files.createTempFile(cacheDirectory, "woven", ".tmp");
+            try
+            {
+                byte[] cached = ByteBuffer.allocate(key.length + LENGTH_SIZE + wovenBuffer.length)
+                                          .put(key)
+                                          .putInt(wovenBuffer.length)
+                                          .put(wovenBuffer)
+                                          .array();
+                Files.write(tmpPath, cached);
+                Files.move(tmpPath, cacheFile(key), StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally
+            {
+                Files.deleteIfExists(tmpPath);
+            }
+        }
+        catch (IOException e)
+        {
+            log("Failed to save woven class cache: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package au.net.causal.springboot.keepassxcpropertyagent.cds;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Command line entry point of the agent JAR that builds a class data sharing (CDS) archive from a class list recorded
+ * with the agent's <code>cdsClassList</code> option.
+ * <p>
+ *
+ * Usage: <code>java -jar &lt;agent JAR&gt; &lt;class list file&gt; &lt;archive file&gt;</code>
+ * <p>
+ *
+ * The archive is built with the agent JAR as its class path, so the agent JAR must also be the first entry on the
+ * application's class path for the archive to be used.
+ */
+public class CdsArchiveBuilder
+{
+    public static void main(String... args)
+    throws IOException, InterruptedException, URISyntaxException
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Usage: java -jar <agent JAR> <class list file> <archive file>");
+            System.exit(1);
+        }
+
+        Path classListFile = Path.of(args[0]);
+        Path archiveFile = Path.of(args[1]);
+
+        if (Files.notExists(classListFile))
+        {
+            System.err.println("Class list file " + classListFile + " does not exist, record one first by running the application with the agent's cdsClassList option");
+            System.exit(1);
+        }
+
+        Path agentJar = Path.of(CdsArchiveBuilder.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toAbsolutePath();
+        Path javaExecutable = Path.of(System.getProperty("java.home"), "bin", "java");
+
+        List<String> command = List.of(javaExecutable.toString(),
+                                       "-Xshare:dump",
+                                       "-XX:SharedClassListFile=" + classListFile.toAbsolutePath(),
+                                       "-XX:SharedArchiveFile=" + archiveFile.toAbsolutePath(),
+                                       "-cp", agentJar.toString());
+
+        int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (exitCode != 0)
+        {
+            System.err.println("Failed to create CDS archive (exit code " + exitCode + ")");
+            System.exit(exitCode);
+        }
+
+        System.out.println();
+        System.out.println("Created CDS archive " + archiveFile.toAbsolutePath() + ", use it by running the application with:");
+        System.out.println("  -XX:SharedArchiveFile=" + archiveFile.toAbsolutePath() + " -javaagent:" + agentJar + " -cp " + agentJar + File.pathSeparator + "<application class path>");
+    }
+}
@@ -0,0 +1,120 @@
+package au.net.causal.springboot.keepassxcpropertyagent.cds;
+
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static au.net.causal.springboot.keepassxcpropertyagent.logging.Logging.*;
+
+/**
+ * Records the classes loaded during a training run into a class list file that can be used to build a class data
+ * sharing (CDS) archive.
+ * <p>
+ *
+ * The class list contains the agent's own classes, including its shaded dependencies, and the JDK classes that were
+ * loaded.  Other application classes are not recorded since they will not be on the class path when the archive is
+ * built.
+ *
+ * @see CdsArchiveBuilder
+ */
+public class CdsClassListRecorder
+{
+    private final Instrumentation inst;
+    private final Path classListFile;
+    private final String agentLocation;
+
+    /**
+     * Creates the recorder.
+     *
+     * @param inst instrumentation used to find loaded classes.
+     * @param classListFile the class list file to write.
+     * @param agentLocation the code source location of the agent JAR file.
+     */
+    public CdsClassListRecorder(Instrumentation inst, Path classListFile, URL agentLocation)
+    {
+        this.inst = Objects.requireNonNull(inst);
+        this.classListFile = Objects.requireNonNull(classListFile);
+        this.agentLocation = locationKey(agentLocation);
+    }
+
+    /**
+     * Registers a shutdown hook that writes the class list when the JVM exits.
+     */
+    public void recordOnExit()
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        {
+            try
+            {
+                writeClassList();
+            }
+            catch (IOException e)
+            {
+                log("Failed to write CDS class list to " + classListFile + ": " + e, e);
+            }
+        }, "keepassxc-cds-class-list-recorder"));
+    }
+
+    /**
+     * Writes the names of all currently loaded classes that can be archived to the class list file.
+     *
+     * @throws IOException if an error occurs writing the file.
+     */
+    public void writeClassList()
+    throws IOException
+    {
+        Set<String> classNames = new TreeSet<>();
+        for (Class<?> c : inst.getAllLoadedClasses())
+        {
+            if (isArchivable(c))
+                classNames.add(c.getName().replace('.', '/'));
+        }
+
+        Path parentDirectory = classListFile.toAbsolutePath().getParent();
+        if (parentDirectory != null)
+            Files.createDirectories(parentDirectory);
+
+        Files.write(classListFile, classNames);
+        log("Wrote " + classNames.size() + " classes to CDS class list " + classListFile);
+    }
+
+    private boolean isArchivable(Class<?> c)
+    {
+        //Generated classes can't go in the class list
+        if (c.isArray() || c.isPrimitive() || c.isHidden())
+            return false;
+
+        ClassLoader loader = c.getClassLoader();
+        if (loader == null || loader == ClassLoader.getPlatformClassLoader())
+            return true;
+
+        if (loader != ClassLoader.getSystemClassLoader())
+            return false;
+
+        //Only agent classes from the system class loader, the rest of the application isn't on the archive's class path
+        CodeSource codeSource = c.getProtectionDomain().getCodeSource();
+        return codeSource != null && agentLocation.equals(locationKey(codeSource.getLocation()));
+    }
+
+    private static String locationKey(URL location)
+    {
+        if (location == null)
+            return "";
+
+        try
+        {
+            return Path.of(location.toURI()).toAbsolutePath().normalize().toString();
+        }
+        catch (URISyntaxException | IllegalArgumentException e)
+        {
+            return location.toExternalForm();
+        }
+    }
+}
@@ -40,6 +40,9 @@ public class KeepassProxy implements AutoCloseable
     {
         this.credentialsStore = Objects.requireNonNull(credentialsStore);
 
+        //Load before creating the connection so that failing to load does not leave an unclosed connection behind
+        Credentials credentials = credentialsStore.loadCredentials();
+
         if (SystemUtils.IS_OS_WINDOWS)
             connection = new WindowsConnection();
         else
@@ -48,7 +51,7 @@ public class KeepassProxy implements AutoCloseable
         credentialsUpdater = new CredentialsUpdater();
         connection.addPropertyChangeListener(credentialsUpdater);
 
-        connection.setCredentials(Optional.ofNullable(credentialsStore.loadCredentials()));
+        connection.setCredentials(Optional.ofNullable(credentials));
     }
 
     private void handleConnectionCredentialsUpdate(Credentials credentials)
@@ -65,12 +68,16 @@ public class KeepassProxy implements AutoCloseable
         }
     }
 
+    /**
+     * Closes the connection and unregisters from it.  The connection, its listeners and any threads it runs would
+     * otherwise keep the agent's client classes loaded.
+     */
     @Override
     public void close()
     {
-        connection.removePropertyChangeListener(credentialsUpdater);
         try
         {
+            connection.removePropertyChangeListener(credentialsUpdater);
             connection.close();
         }
         catch (Exception e)
@@ -0,0 +1,327 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+/**
+ * The Argon2 key derivation function, used by KDBX 4 databases.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc9106">RFC 9106</a>
+ */
+final class Argon2
+{
+    public static final int TYPE_ARGON2D = 0;
+    public static final int TYPE_ARGON2I = 1;
+    public static final int TYPE_ARGON2ID = 2;
+
+    private static final int BLOCK_WORDS = 128;
+    private static final int BLOCK_SIZE = BLOCK_WORDS * 8;
+    private static final int SYNC_POINTS = 4;
+    private static final int VERSION_10 = 0x10;
+
+    private final int type;
+    private final int version;
+    private final int lanes;
+    private final int passes;
+    private final int laneLength;
+    private final int segmentLength;
+    private final long[][] memory;
+
+    private Argon2(int type, int version, int lanes, int passes, int memoryKiB)
+    {
+        this.type = type;
+        this.version = version;
+        this.lanes = lanes;
+        this.passes = passes;
+
+        int memoryBlocks = Math.max(memoryKiB, 2 * SYNC_POINTS * lanes);
+        segmentLength = memoryBlocks / (lanes * SYNC_POINTS);
+        laneLength = segmentLength * SYNC_POINTS;
+        memory = new long[lanes * laneLength][];
+    }
+
+    /**
+     * Derives a key with Argon2.
+     *
+     * @param type one of the <code>TYPE_</code> constants.
+     * @param version Argon2 version, 0x10 or 0x13.
+     * @param password the password.
+     * @param salt the salt.
+     * @param secret optional secret, may be empty.
+     * @param associatedData optional associated data, may be empty.
+     * @param lanes degree of parallelism.
+     * @param passes number of iterations.
+     * @param memoryKiB memory size in KiB.
+     * @param tagLength length of the derived key in bytes.
+     *
+     * @return the derived key.
+     */
+    public static byte[] hash(int type, int version, byte[] password, byte[] salt, byte[] secret, byte[] associatedData,
+                              int lanes, int passes, int memoryKiB, int tagLength)
+    {
+        if (lanes < 1 || passes < 1 || tagLength < 4)
+            throw new IllegalArgumentException("Invalid Argon2 parameters");
+
+        Argon2 argon2 = new Argon2(type, version, lanes, passes, memoryKiB);
+
+        byte[] h0 = new Blake2b(64).updateInt(lanes)
+                                   .updateInt(tagLength)
+                                   .updateInt(memoryKiB)
+                                   .updateInt(passes)
+                                   .updateInt(version)
+                                   .updateInt(type)
+                                   .updateInt(password.length).update(password)
+                                   .updateInt(salt.length).update(salt)
+                                   .updateInt(secret.length).update(secret)
+                                   .updateInt(associatedData.length).update(associatedData)
+                                   .digest();
+
+        return argon2.run(h0, tagLength);
+    }
+
+    private byte[] run(byte[] h0, int tagLength)
+    {
+        for (int lane = 0; lane < lanes; lane++)
+        {
+            for (int i = 0; i < 2; i++)
+            {
+                byte[] seed = new byte[h0.length + 8];
+                System.arraycopy(h0, 0, seed, 0, h0.length);
+                System.arraycopy(LittleEndian.intBytes(i), 0, seed, h0.length, 4);
+                System.arraycopy(LittleEndian.intBytes(lane), 0, seed, h0.length + 4, 4);
+                memory[lane * laneLength + i] = bytesToBlock(variableHash(seed, BLOCK_SIZE));
+            }
+        }
+
+        for (int pass = 0; pass < passes; pass++)
+        {
+            for (int slice = 0; slice < SYNC_POINTS; slice++)
+            {
+                //Lanes only reference blocks from finished slices of other lanes, so can be filled one after the other
+                for (int lane = 0; lane < lanes; lane++)
+                {
+                    fillSegment(pass, lane, slice);
+                }
+            }
+        }
+
+        long[] finalBlock = memory[laneLength - 1].clone();
+        for (int lane = 1; lane < lanes; lane++)
+        {
+            xorInto(finalBlock, memory[lane * laneLength + laneLength - 1]);
+        }
+
+        return variableHash(blockToBytes(finalBlock), tagLength);
+    }
+
+    private void fillSegment(int pass, int lane, int slice)
+    {
+        boolean dataIndependentAddressing = type == TYPE_ARGON2I || (type == TYPE_ARGON2ID && pass == 0 && slice < SYNC_POINTS / 2);
+
+        long[] addressBlock = null;
+        long[] inputBlock = null;
+        long[] zeroBlock = null;
+        if (dataIndependentAddressing)
+        {
+            addressBlock = new long[BLOCK_WORDS];
+            zeroBlock = new long[BLOCK_WORDS];
+            inputBlock = new long[BLOCK_WORDS];
+            inputBlock[0] = pass;
+            inputBlock[1] = lane;
+            inputBlock[2] = slice;
+            inputBlock[3] = memory.length;
+            inputBlock[4] = passes;
+            inputBlock[5] = type;
+        }
+
+        int startingIndex = 0;
+        if (pass == 0 && slice == 0)
+        {
+            startingIndex = 2;
+            if (dataIndependentAddressing)
+                nextAddresses(addressBlock, inputBlock, zeroBlock);
+        }
+
+        int currentOffset = lane * laneLength + slice * segmentLength + startingIndex;
+        int previousOffset;
+        if (currentOffset % laneLength == 0)
+            previousOffset = currentOffset + laneLength - 1;
+        else
+            previousOffset = currentOffset - 1;
+
+        for (int i = startingIndex; i < segmentLength; i++, currentOffset++, previousOffset++)
+        {
+            if (currentOffset % laneLength == 1)
+                previousOffset = currentOffset - 1;
+
+            long pseudoRandom;
+            if (dataIndependentAddressing)
+            {
+                if (i % BLOCK_WORDS == 0)
+                    nextAddresses(addressBlock, inputBlock, zeroBlock);
+                pseudoRandom = addressBlock[i % BLOCK_WORDS];
+            }
+            else
+                pseudoRandom = memory[previousOffset][0];
+
+            int referenceLane = (int)((pseudoRandom >>> 32) % lanes);
+            if (pass == 0 && slice == 0)
+                referenceLane = lane;
+
+            int referenceIndex = indexAlpha(pass, slice, i, pseudoRandom & 0xFFFFFFFFL, referenceLane == lane);
+            long[] referenceBlock = memory[referenceLane * laneLength + referenceIndex];
+            long[] previousBlock = memory[previousOffset];
+
+            if (pass == 0 || version == VERSION_10)
+                memory[currentOffset] = fillBlock(previousBlock, referenceBlock, null);
+            else
+                memory[currentOffset] = fillBlock(previousBlock, referenceBlock, memory[currentOffset]);
+        }
+    }
+
+    private int indexAlpha(int pass, int slice, int index, long pseudoRandom, boolean sameLane)
+    {
+        long referenceAreaSize;
+        if (pass == 0)
+        {
+            if (slice == 0)
+                referenceAreaSize = index - 1;
+            else if (sameLane)
+                referenceAreaSize = (long)slice * segmentLength + index - 1;
+            else
+                referenceAreaSize = (long)slice * segmentLength + (index == 0 ? -1 : 0);
+        }
+        else
+        {
+            if (sameLane)
+                referenceAreaSize = laneLength - segmentLength + index - 1;
+            else
+                referenceAreaSize = laneLength - segmentLength + (index == 0 ? -1 : 0);
+        }
+
+        long relativePosition = (pseudoRandom * pseudoRandom) >>> 32;
+        relativePosition = referenceAreaSize - 1 - ((referenceAreaSize * relativePosition) >>> 32);
+
+        long startPosition = 0;
+        if (pass != 0)
+            startPosition = (slice == SYNC_POINTS - 1) ? 0 : (long)(slice + 1) * segmentLength;
+
+        return (int)((startPosition + relativePosition) % laneLength);
+    }
+
+    private static void nextAddresses(long[] addressBlock, long[] inputBlock, long[] zeroBlock)
+    {
+        inputBlock[6]++;
+        long[] block = fillBlock(zeroBlock, inputBlock, null);
+        block = fillBlock(zeroBlock, block, null);
+        System.arraycopy(block, 0, addressBlock, 0, BLOCK_WORDS);
+    }
+
+    /**
+     * The compression function G, optionally XORed with the existing block for passes after the first.
+     */
+    private static long[] fillBlock(long[] previousBlock, long[] referenceBlock, long[] existingBlock)
+    {
+        long[] r = new long[BLOCK_WORDS];
+        for (int i = 0; i < BLOCK_WORDS; i++)
+        {
+            r[i] = previousBlock[i] ^ referenceBlock[i];
+        }
+
+        long[] result = r.clone();
+        if (existingBlock != null)
+            xorInto(result, existingBlock);
+
+        //Rows
+        for (int i = 0; i < 8; i++)
+        {
+            int base = i * 16;
+            permute(r, base, base + 1, base + 2, base + 3, base + 4, base + 5, base + 6, base + 7,
+                       base + 8, base + 9, base + 10, base + 11, base + 12, base + 13, base + 14, base + 15);
+        }
+
+        //Columns
+        for (int i = 0; i < 8; i++)
+        {
+            int base = i * 2;
+            permute(r, base, base + 1, base + 16, base + 17, base + 32, base + 33, base + 48, base + 49,
+                       base + 64, base + 65, base + 80, base + 81, base + 96, base + 97, base + 112, base + 113);
+        }
+
+        xorInto(result, r);
+        return result;
+    }
+
+    private static void permute(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7,
+                                int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15)
+    {
+        mix(v, v0, v4, v8, v12);
+        mix(v, v1, v5, v9, v13);
+        mix(v, v2, v6, v10, v14);
+        mix(v, v3, v7, v11, v15);
+        mix(v, v0, v5, v10, v15);
+        mix(v, v1, v6, v11, v12);
+        mix(v, v2, v7, v8, v13);
+        mix(v, v3, v4, v9, v14);
+    }
+
+    private static void mix(long[] v, int a, int b, int c, int d)
+    {
+        v[a] = v[a] + v[b] + 2 * (v[a] & 0xFFFFFFFFL) * (v[b] & 0xFFFFFFFFL);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = v[c] + v[d] + 2 * (v[c] & 0xFFFFFFFFL) * (v[d] & 0xFFFFFFFFL);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = v[a] + v[b] + 2 * (v[a] & 0xFFFFFFFFL) * (v[b] & 0xFFFFFFFFL);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = v[c] + v[d] + 2 * (v[c] & 0xFFFFFFFFL) * (v[d] & 0xFFFFFFFFL);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+
+    private static void xorInto(long[] target, long[] source)
+    {
+        for (int i = 0; i < target.length; i++)
+        {
+            target[i] ^= source[i];
+        }
+    }
+
+    /**
+     * The variable length hash function H'.
+     */
+    private static byte[] variableHash(byte[] input, int outputLength)
+    {
+        if (outputLength <= 64)
+            return new Blake2b(outputLength).updateInt(outputLength).update(input).digest();
+
+        byte[] out = new byte[outputLength];
+        byte[] v = new Blake2b(64).updateInt(outputLength).update(input).digest();
+        System.arraycopy(v, 0, out, 0, 32);
+        int position = 32;
+        while (outputLength - position > 64)
+        {
+            v = new Blake2b(64).update(v).digest();
+            System.arraycopy(v, 0, out, position, 32);
+            position += 32;
+        }
+        v = new Blake2b(outputLength - position).update(v).digest();
+        System.arraycopy(v, 0, out, position, v.length);
+        return out;
+    }
+
+    private static long[] bytesToBlock(byte[] data)
+    {
+        long[] block = new long[BLOCK_WORDS];
+        for (int i = 0; i < BLOCK_WORDS; i++)
+        {
+            block[i] = LittleEndian.readLong(data, i * 8);
+        }
+        return block;
+    }
+
+    private static byte[] blockToBytes(long[] block)
+    {
+        byte[] data = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_WORDS; i++)
+        {
+            System.arraycopy(LittleEndian.longBytes(block[i]), 0, data, i * 8, 8);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,42 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-2 digests over multiple pieces of data.
+ */
+final class Digests
+{
+    private Digests()
+    {
+    }
+
+    public static byte[] sha256(byte[]... data)
+    {
+        return digest("SHA-256", data);
+    }
+
+    public static byte[] sha512(byte[]... data)
+    {
+        return digest("SHA-512", data);
+    }
+
+    private static byte[] digest(String algorithm, byte[]... data)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            for (byte[] item : data)
+            {
+                digest.update(item);
+            }
+            return digest.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            //Every JVM is required to support SHA-256 and SHA-512
+            throw new RuntimeException(algorithm + " not supported: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+
+/**
+ * Builds the composite key used to open a KDBX database from a password and/or key file.
+ */
+public final class KdbxCredentials
+{
+    private KdbxCredentials()
+    {
+    }
+
+    /**
+     * Creates a composite key.
+     *
+     * @param password the database password, or null if the database has no password.
+     * @param keyFile the key file, or null if the database has no key file.
+     *
+     * @return the composite key.
+     *
+     * @throws IOException if neither a password or key file is given, or if an error occurs reading the key file.
+     */
+    public static byte[] compositeKey(String password, Path keyFile)
+    throws IOException
+    {
+        if (password == null && keyFile == null)
+            throw new IOException("A password or key file is required to open a KDBX database");
+
+        ByteArrayOutputStream components = new ByteArrayOutputStream();
+        if (password != null)
+            components.writeBytes(Digests.sha256(password.getBytes(StandardCharsets.UTF_8)));
+        if (keyFile != null)
+            components.writeBytes(readKeyFile(keyFile));
+
+        return Digests.sha256(components.toByteArray());
+    }
+
+    /**
+     * Reads the key from a key file.  Supports XML key files (versions 1 and 2), raw 32 byte keys, 64 character hex keys
+     * and arbitrary files, which are hashed.
+     */
+    private static byte[] readKeyFile(Path keyFile)
+    throws IOException
+    {
+        byte[] content = Files.readAllBytes(keyFile);
+
+        String text = new String(content, StandardCharsets.UTF_8).strip();
+        if (text.startsWith("<?xml") || text.startsWith("<KeyFile"))
+        {
+            byte[] key = readXmlKeyFile(keyFile, content);
+            if (key != null)
+                return key;
+        }
+
+        if (content.length == 32)
+            return content;
+
+        if (content.length == 64)
+        {
+            try
+            {
+                return HexFormat.of().parseHex(new String(content, StandardCharsets.US_ASCII));
+            }
+            catch (IllegalArgumentException e)
+            {
+                //Not hex, so is hashed like any other file
+            }
+        }
+
+        return Digests.sha256(content);
+    }
+
+    private static byte[] readXmlKeyFile(Path keyFile, byte[] content)
+    throws IOException
+    {
+        Document document;
+        try
+        {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(content));
+        }
+        catch (ParserConfigurationException | SAXException e)
+        {
+            //Not XML after all, so is hashed like any other file
+            return null;
+        }
+
+        String version = textOf(document, "Version");
+        Element dataElement = firstElement(document, "Data");
+        if (dataElement == null)
+            return null;
+
+        String data = dataElement.getTextContent();
+        if (version != null && version.startsWith("2."))
+        {
+            byte[] key = HexFormat.of().parseHex(data.replaceAll("\\s", ""));
+            String hash = dataElement.getAttribute("Hash");
+            if (!hash.isEmpty() && !Arrays.equals(HexFormat.of().parseHex(hash), 0, 4, Digests.sha256(key), 0, 4))
+                throw new IOException("Key file " + keyFile + " is corrupted, hash does not match");
+
+            return key;
+        }
+        else
+            return Base64.getDecoder().decode(data.strip());
+    }
+
+    private static Element firstElement(Document document, String name)
+    {
+        NodeList elements = document.getElementsByTagName(name);
+        return elements.getLength() > 0 ? (Element)elements.item(0) : null;
+    }
+
+    private static String textOf(Document document, String name)
+    {
+        Element element = firstElement(document, name);
+        return element == null ? null : element.getTextContent().strip();
+    }
+}
@@ -0,0 +1,544 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.ChaCha20ParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads entries from a KeePass database file in KDBX 3.1 or KDBX 4 format, without needing KeepassXC to be running.
+ * <p>
+ *
+ * Supports AES-256 and ChaCha20 encryption, AES-KDF and Argon2 key derivation, and Salsa20 and ChaCha20 protected
+ * values, which covers databases created by KeepassXC.  Twofish encryption is not supported.
+ *
+ * @see <a href="https://keepass.info/help/kb/kdbx_4.html">KDBX 4 format</a>
+ */
+public class KdbxDatabase
+{
+    private static final int SIGNATURE_1 = 0x9AA2D903;
+    private static final int SIGNATURE_2 = 0xB54BFB67;
+
+    private static final int HEADER_END = 0;
+    private static final int HEADER_CIPHER_ID = 2;
+    private static final int HEADER_COMPRESSION_FLAGS = 3;
+    private static final int HEADER_MASTER_SEED = 4;
+    private static final int HEADER_TRANSFORM_SEED = 5;
+    private static final int HEADER_TRANSFORM_ROUNDS = 6;
+    private static final int HEADER_ENCRYPTION_IV = 7;
+    private static final int HEADER_PROTECTED_STREAM_KEY = 8;
+    private static final int HEADER_STREAM_START_BYTES = 9;
+    private static final int HEADER_INNER_RANDOM_STREAM_ID = 10;
+    private static final int HEADER_KDF_PARAMETERS = 11;
+
+    private static final int INNER_HEADER_RANDOM_STREAM_ID = 1;
+    private static final int INNER_HEADER_RANDOM_STREAM_KEY = 2;
+
+    private static final UUID CIPHER_AES256 = UUID.fromString("31c1f2e6-bf71-4350-be58-05216afc5aff");
+    private static final UUID CIPHER_CHACHA20 = UUID.fromString("d6038a2b-8b6f-4cb5-a524-339a31dbb59a");
+    private static final UUID KDF_AES = UUID.fromString("c9d9f39a-628a-4460-bf74-0d08c18a4fea");
+    private static final UUID KDF_ARGON2D = UUID.fromString("ef636ddf-8c29-444b-91f7-a9a403e30a0c");
+    private static final UUID KDF_ARGON2ID = UUID.fromString("9e298b19-56db-4773-b23d-fc3ec6f0a1e6");
+
+    private static final int RANDOM_STREAM_SALSA20 = 2;
+    private static final int RANDOM_STREAM_CHACHA20 = 3;
+    private static final byte[] SALSA20_NONCE = {(byte)0xE8, 0x30, 0x09, 0x4B, (byte)0x97, 0x20, 0x5D, 0x2A};
+
+    private final List<KdbxEntry> entries;
+
+    private KdbxDatabase(List<KdbxEntry> entries)
+    {
+        this.entries = List.copyOf(entries);
+    }
+
+    /**
+     * Opens and decrypts a database file.
+     *
+     * @param file the database file.
+     * @param compositeKey the composite key for the database.
+     *
+     * @return the database.
+     *
+     * @throws IOException if the file cannot be read or decrypted, including if the key is wrong.
+     *
+     * @see KdbxCredentials#compositeKey(String, Path)
+     */
+    public static KdbxDatabase open(Path file, byte[] compositeKey)
+    throws IOException
+    {
+        byte[] data = Files.readAllBytes(file);
+        try
+        {
+            return read(data, compositeKey);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("KDBX file " + file + " is truncated", e);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("Failed to decrypt KDBX file " + file + ": " + e, e);
+        }
+    }
+
+    /**
+     * @return all entries in the database, excluding those in the recycle bin and entry history.
+     */
+    public List<KdbxEntry> getEntries()
+    {
+        return entries;
+    }
+
+    private static KdbxDatabase read(byte[] data, byte[] compositeKey)
+    throws IOException, GeneralSecurityException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.getInt() != SIGNATURE_1 || buf.getInt() != SIGNATURE_2)
+            throw new IOException("Not a KDBX file");
+
+        int majorVersion = buf.getInt() >>> 16;
+        if (majorVersion != 3 && majorVersion != 4)
+            throw new IOException("Unsupported KDBX version " + majorVersion);
+
+        Map<Integer, byte[]> header = new HashMap<>();
+        int fieldId;
+        do
+        {
+            fieldId = buf.get();
+            int size = majorVersion >= 4 ? buf.getInt() : Short.toUnsignedInt(buf.getShort());
+            byte[] fieldData = new byte[size];
+            buf.get(fieldData);
+            header.put(fieldId, fieldData);
+        }
+        while (fieldId != HEADER_END);
+
+        byte[] headerBytes = Arrays.copyOfRange(data, 0, buf.position());
+        byte[] masterSeed = requiredHeader(header, HEADER_MASTER_SEED);
+        boolean compressed = LittleEndian.readInt(requiredHeader(header, HEADER_COMPRESSION_FLAGS), 0) != 0;
+
+        byte[] payload;
+        byte[] transformedKey;
+        if (majorVersion >= 4)
+        {
+            byte[] headerHash = new byte[32];
+            buf.get(headerHash);
+            if (!MessageDigest.isEqual(headerHash, Digests.sha256(headerBytes)))
+                throw new IOException("KDBX header is corrupted");
+
+            byte[] headerHmac = new byte[32];
+            buf.get(headerHmac);
+
+            transformedKey = transformKeyWithParameters(compositeKey, requiredHeader(header, HEADER_KDF_PARAMETERS));
+            byte[] hmacKey = Digests.sha512(masterSeed, transformedKey, new byte[] {1});
+            if (!MessageDigest.isEqual(headerHmac, blockHmac(hmacKey, -1L, headerBytes)))
+                throw new IOException("Invalid credentials for KDBX file or the file is corrupted");
+
+            payload = readHmacBlockStream(buf, hmacKey);
+        }
+        else
+        {
+            transformedKey = aesKdf(compositeKey, requiredHeader(header, HEADER_TRANSFORM_SEED),
+                                    LittleEndian.readLong(requiredHeader(header, HEADER_TRANSFORM_ROUNDS), 0));
+            payload = new byte[buf.remaining()];
+            buf.get(payload);
+        }
+
+        byte[] encryptionKey = Digests.sha256(masterSeed, transformedKey);
+        byte[] decrypted = decrypt(requiredHeader(header, HEADER_CIPHER_ID), encryptionKey, requiredHeader(header, HEADER_ENCRYPTION_IV), payload);
+
+        ProtectedStream protectedStream;
+        if (majorVersion >= 4)
+        {
+            if (compressed)
+                decrypted = gunzip(decrypted);
+
+            ByteBuffer innerBuf = ByteBuffer.wrap(decrypted).order(ByteOrder.LITTLE_ENDIAN);
+            Map<Integer, byte[]> innerHeader = new HashMap<>();
+            do
+            {
+                fieldId = innerBuf.get();
+                byte[] fieldData = new byte[innerBuf.getInt()];
+                innerBuf.get(fieldData);
+
+                //Binary attachments are not needed so don't keep them
+                if (fieldId == INNER_HEADER_RANDOM_STREAM_ID || fieldId == INNER_HEADER_RANDOM_STREAM_KEY)
+                    innerHeader.put(fieldId, fieldData);
+            }
+            while (fieldId != HEADER_END);
+
+            protectedStream = createProtectedStream(LittleEndian.readInt(requiredHeader(innerHeader, INNER_HEADER_RANDOM_STREAM_ID), 0),
+                                                    requiredHeader(innerHeader, INNER_HEADER_RANDOM_STREAM_KEY));
+            decrypted = Arrays.copyOfRange(decrypted, innerBuf.position(), decrypted.length);
+        }
+        else
+        {
+            byte[] streamStartBytes = requiredHeader(header, HEADER_STREAM_START_BYTES);
+            if (decrypted.length < streamStartBytes.length ||
+                !MessageDigest.isEqual(streamStartBytes, Arrays.copyOf(decrypted, streamStartBytes.length)))
+            {
+                throw new IOException("Invalid credentials for KDBX file or the file is corrupted");
+            }
+
+            decrypted = readHashedBlockStream(ByteBuffer.wrap(decrypted, streamStartBytes.length, decrypted.length - streamStartBytes.length)
+                                                        .order(ByteOrder.LITTLE_ENDIAN));
+            if (compressed)
+                decrypted = gunzip(decrypted);
+
+            protectedStream = createProtectedStream(LittleEndian.readInt(requiredHeader(header, HEADER_INNER_RANDOM_STREAM_ID), 0),
+                                                    requiredHeader(header, HEADER_PROTECTED_STREAM_KEY));
+        }
+
+        return new KdbxDatabase(readEntries(decrypted, protectedStream));
+    }
+
+    private static byte[] requiredHeader(Map<Integer, byte[]> header, int fieldId)
+    throws IOException
+    {
+        byte[] value = header.get(fieldId);
+        if (value == null)
+            throw new IOException("KDBX header field " + fieldId + " is missing");
+
+        return value;
+    }
+
+    private static byte[] transformKeyWithParameters(byte[] compositeKey, byte[] kdfParameters)
+    throws IOException, GeneralSecurityException
+    {
+        Map<String, byte[]> parameters = readVariantDictionary(kdfParameters);
+        byte[] kdfUuidBytes = parameters.get("$UUID");
+        if (kdfUuidBytes == null || kdfUuidBytes.length != 16)
+            throw new IOException("KDBX key derivation function not specified");
+
+        UUID kdfUuid = uuid(kdfUuidBytes);
+        if (KDF_AES.equals(kdfUuid))
+            return aesKdf(compositeKey, parameters.get("S"), LittleEndian.readLong(parameters.get("R"), 0));
+        else if (KDF_ARGON2D.equals(kdfUuid) || KDF_ARGON2ID.equals(kdfUuid))
+        {
+            long memoryBytes = LittleEndian.readLong(parameters.get("M"), 0);
+            long iterations = LittleEndian.readLong(parameters.get("I"), 0);
+            if (memoryBytes / 1024L > Integer.MAX_VALUE || iterations > Integer.MAX_VALUE)
+                throw new IOException("Unsupported Argon2 parameters in KDBX file");
+
+            return Argon2.hash(KDF_ARGON2D.equals(kdfUuid) ? Argon2.TYPE_ARGON2D : Argon2.TYPE_ARGON2ID,
+                               LittleEndian.readInt(parameters.get("V"), 0),
+                               compositeKey,
+                               parameters.get("S"),
+                               parameters.getOrDefault("K", new byte[0]),
+                               parameters.getOrDefault("A", new byte[0]),
+                               LittleEndian.readInt(parameters.get("P"), 0),
+                               (int)iterations,
+                               (int)(memoryBytes / 1024L),
+                               32);
+        }
+        else
+            throw new IOException("Unsupported KDBX key derivation function " + kdfUuid);
+    }
+
+    /**
+     * Reads a KDBX variant dictionary.  Values are kept as raw bytes since the caller knows their types.
+     */
+    private static Map<String, byte[]> readVariantDictionary(byte[] data)
+    throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int version = Short.toUnsignedInt(buf.getShort());
+        if ((version & 0xFF00) != 0x0100)
+            throw new IOException("Unsupported KDBX variant dictionary version " + Integer.toHexString(version));
+
+        Map<String, byte[]> dictionary = new HashMap<>();
+        while (buf.get() != 0)
+        {
+            byte[] key = new byte[buf.getInt()];
+            buf.get(key);
+            byte[] value = new byte[buf.getInt()];
+            buf.get(value);
+            dictionary.put(new String(key, StandardCharsets.UTF_8), value);
+        }
+        return dictionary;
+    }
+
+    private static byte[] aesKdf(byte[] compositeKey, byte[] seed, long rounds)
+    throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, "AES"));
+        byte[] key = compositeKey.clone();
+        for (long i = 0; i < rounds; i++)
+        {
+            cipher.update(key, 0, key.length, key, 0);
+        }
+        return Digests.sha256(key);
+    }
+
+    private static byte[] decrypt(byte[] cipherIdBytes, byte[] key, byte[] iv, byte[] payload)
+    throws IOException, GeneralSecurityException
+    {
+        UUID cipherId = uuid(cipherIdBytes);
+        Cipher cipher;
+        if (CIPHER_AES256.equals(cipherId))
+        {
+            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        }
+        else if (CIPHER_CHACHA20.equals(cipherId))
+        {
+            cipher = Cipher.getInstance("ChaCha20");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "ChaCha20"), new ChaCha20ParameterSpec(iv, 0));
+        }
+        else
+            throw new IOException("Unsupported KDBX cipher " + cipherId);
+
+        try
+        {
+            return cipher.doFinal(payload);
+        }
+        catch (GeneralSecurityException e)
+        {
+            //Bad padding is what a wrong key looks like in KDBX 3
+            throw new IOException("Invalid credentials for KDBX file or the file is corrupted", e);
+        }
+    }
+
+    private static byte[] blockHmac(byte[] hmacKey, long blockIndex, byte[]... data)
+    throws GeneralSecurityException
+    {
+        byte[] blockKey = Digests.sha512(LittleEndian.longBytes(blockIndex), hmacKey);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(blockKey, "HmacSHA256"));
+        for (byte[] item : data)
+        {
+            mac.update(item);
+        }
+        return mac.doFinal();
+    }
+
+    /**
+     * Reads the KDBX 4 HMAC block stream, verifying each block.
+     */
+    private static byte[] readHmacBlockStream(ByteBuffer buf, byte[] hmacKey)
+    throws IOException, GeneralSecurityException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(buf.remaining());
+        for (long blockIndex = 0; ; blockIndex++)
+        {
+            byte[] hmac = new byte[32];
+            buf.get(hmac);
+            int size = buf.getInt();
+            if (size < 0)
+                throw new IOException("KDBX block stream is corrupted");
+            byte[] block = new byte[size];
+            buf.get(block);
+
+            if (!MessageDigest.isEqual(hmac, blockHmac(hmacKey, blockIndex, LittleEndian.longBytes(blockIndex), LittleEndian.intBytes(size), block)))
+                throw new IOException("KDBX block " + blockIndex + " is corrupted");
+
+            if (size == 0)
+                return out.toByteArray();
+
+            out.writeBytes(block);
+        }
+    }
+
+    /**
+     * Reads the KDBX 3 hashed block stream, verifying each block.
+     */
+    private static byte[] readHashedBlockStream(ByteBuffer buf)
+    throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(buf.remaining());
+        while (true)
+        {
+            buf.getInt(); //Block index
+            byte[] hash = new byte[32];
+            buf.get(hash);
+            int size = buf.getInt();
+            if (size < 0)
+                throw new IOException("KDBX block stream is corrupted");
+            if (size == 0)
+                return out.toByteArray();
+
+            byte[] block = new byte[size];
+            buf.get(block);
+            if (!MessageDigest.isEqual(hash, Digests.sha256(block)))
+                throw new IOException("KDBX block is corrupted");
+
+            out.writeBytes(block);
+        }
+    }
+
+    private static byte[] gunzip(byte[] data)
+    throws IOException
+    {
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(data)))
+        {
+            return is.readAllBytes();
+        }
+    }
+
+    private static ProtectedStream createProtectedStream(int streamId, byte[] streamKey)
+    throws IOException, GeneralSecurityException
+    {
+        if (streamId == RANDOM_STREAM_SALSA20)
+        {
+            Salsa20 salsa20 = new Salsa20(Digests.sha256(streamKey), SALSA20_NONCE);
+            return salsa20::process;
+        }
+        else if (streamId == RANDOM_STREAM_CHACHA20)
+        {
+            byte[] keyAndNonce = Digests.sha512(streamKey);
+            Cipher cipher = Cipher.getInstance("ChaCha20");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyAndNonce, 0, 32, "ChaCha20"),
+                        new ChaCha20ParameterSpec(Arrays.copyOfRange(keyAndNonce, 32, 44), 0));
+            return data ->
+            {
+                byte[] processed = cipher.update(data);
+                System.arraycopy(processed, 0, data, 0, data.length);
+            };
+        }
+        else
+            throw new IOException("Unsupported KDBX protected value stream " + streamId);
+    }
+
+    private static List<KdbxEntry> readEntries(byte[] xml, ProtectedStream protectedStream)
+    throws IOException
+    {
+        Document document;
+        try
+        {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        }
+        catch (ParserConfigurationException | SAXException e)
+        {
+            throw new IOException("Failed to parse KDBX XML: " + e, e);
+        }
+
+        //Protected values must be processed in document order, including ones that are not used, to keep the stream in sync
+        NodeList allElements = document.getElementsByTagName("*");
+        for (int i = 0; i < allElements.getLength(); i++)
+        {
+            Element element = (Element)allElements.item(i);
+            if ("True".equalsIgnoreCase(element.getAttribute("Protected")))
+            {
+                byte[] value = Base64.getDecoder().decode(element.getTextContent().strip());
+                protectedStream.process(value);
+                element.setTextContent(new String(value, StandardCharsets.UTF_8));
+            }
+        }
+
+        Element meta = childElement(document.getDocumentElement(), "Meta");
+        String recycleBinUuid = null;
+        if (meta != null && "True".equalsIgnoreCase(childText(meta, "RecycleBinEnabled")))
+            recycleBinUuid = childText(meta, "RecycleBinUUID");
+
+        List<KdbxEntry> entries = new ArrayList<>();
+        Element root = childElement(document.getDocumentElement(), "Root");
+        if (root != null)
+        {
+            for (Element group : childElements(root, "Group"))
+            {
+                readGroup(group, recycleBinUuid, entries);
+            }
+        }
+        return entries;
+    }
+
+    private static void readGroup(Element group, String recycleBinUuid, List<KdbxEntry> entries)
+    {
+        if (recycleBinUuid != null && recycleBinUuid.equals(childText(group, "UUID")))
+            return;
+
+        for (Element entry : childElements(group, "Entry"))
+        {
+            //Only direct strings, history entries are nested further down
+            Map<String, String> strings = new LinkedHashMap<>();
+            for (Element string : childElements(entry, "String"))
+            {
+                String key = childText(string, "Key");
+                String value = childText(string, "Value");
+                if (key != null)
+                    strings.put(key, value == null ? "" : value);
+            }
+            entries.add(new KdbxEntry(strings));
+        }
+
+        for (Element subgroup : childElements(group, "Group"))
+        {
+            readGroup(subgroup, recycleBinUuid, entries);
+        }
+    }
+
+    private static List<Element> childElements(Element parent, String name)
+    {
+        List<Element> children = new ArrayList<>();
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            if (child instanceof Element && name.equals(child.getNodeName()))
+                children.add((Element)child);
+        }
+        return children;
+    }
+
+    private static Element childElement(Element parent, String name)
+    {
+        List<Element> children = childElements(parent, name);
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    private static String childText(Element parent, String name)
+    {
+        Element child = childElement(parent, name);
+        return child == null ? null : child.getTextContent();
+    }
+
+    private static UUID uuid(byte[] data)
+    {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        return new UUID(buf.getLong(), buf.getLong());
+    }
+
+    /**
+     * Decrypts protected values in the database XML.
+     */
+    @FunctionalInterface
+    private static interface ProtectedStream
+    {
+        /**
+         * XORs data with the next bytes of the stream, in place.
+         */
+        public void process(byte[] data);
+    }
+}
@@ -0,0 +1,38 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import java.util.Map;
+
+/**
+ * An entry read from a KDBX database.
+ */
+public class KdbxEntry
+{
+    /**
+     * Name of the standard URL field.
+     */
+    public static final String URL_FIELD = "URL";
+
+    private final Map<String, String> strings;
+
+    public KdbxEntry(Map<String, String> strings)
+    {
+        this.strings = Map.copyOf(strings);
+    }
+
+    /**
+     * @return all string fields of the entry, including the standard fields such as title and URL and any additional
+     *         attributes.  Protected values have already been decrypted.
+     */
+    public Map<String, String> getStrings()
+    {
+        return strings;
+    }
+
+    /**
+     * @return the entry's URL, or null if it has none.
+     */
+    public String getUrl()
+    {
+        return strings.get(URL_FIELD);
+    }
+}
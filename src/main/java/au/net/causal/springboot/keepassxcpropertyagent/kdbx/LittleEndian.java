@@ -0,0 +1,39 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+/**
+ * Little-endian conversions, which is the byte order used throughout the KDBX format.
+ */
+final class LittleEndian
+{
+    private LittleEndian()
+    {
+    }
+
+    public static int readInt(byte[] data, int offset)
+    {
+        return (data[offset] & 0xFF) |
+               (data[offset + 1] & 0xFF) << 8 |
+               (data[offset + 2] & 0xFF) << 16 |
+               (data[offset + 3] & 0xFF) << 24;
+    }
+
+    public static long readLong(byte[] data, int offset)
+    {
+        return (readInt(data, offset) & 0xFFFFFFFFL) | ((long)readInt(data, offset + 4) << 32);
+    }
+
+    public static byte[] intBytes(int value)
+    {
+        return new byte[] {(byte)value, (byte)(value >>> 8), (byte)(value >>> 16), (byte)(value >>> 24)};
+    }
+
+    public static byte[] longBytes(long value)
+    {
+        byte[] data = new byte[8];
+        for (int i = 0; i < 8; i++)
+        {
+            data[i] = (byte)(value >>> (8 * i));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,94 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+/**
+ * Salsa20/20 stream cipher, used for protected values in KDBX 3 databases.  The JDK does not provide this cipher.
+ */
+final class Salsa20
+{
+    private static final int[] SIGMA = {0x61707865, 0x3320646e, 0x79622d32, 0x6b206574};
+
+    private final int[] state = new int[16];
+    private final byte[] keyStream = new byte[64];
+    private int keyStreamPosition = keyStream.length;
+
+    /**
+     * @param key 32 byte key.
+     * @param nonce 8 byte nonce.
+     */
+    public Salsa20(byte[] key, byte[] nonce)
+    {
+        if (key.length != 32 || nonce.length != 8)
+            throw new IllegalArgumentException("Salsa20 requires a 32 byte key and 8 byte nonce");
+
+        state[0] = SIGMA[0];
+        state[1] = LittleEndian.readInt(key, 0);
+        state[2] = LittleEndian.readInt(key, 4);
+        state[3] = LittleEndian.readInt(key, 8);
+        state[4] = LittleEndian.readInt(key, 12);
+        state[5] = SIGMA[1];
+        state[6] = LittleEndian.readInt(nonce, 0);
+        state[7] = LittleEndian.readInt(nonce, 4);
+        state[8] = 0;
+        state[9] = 0;
+        state[10] = SIGMA[2];
+        state[11] = LittleEndian.readInt(key, 16);
+        state[12] = LittleEndian.readInt(key, 20);
+        state[13] = LittleEndian.readInt(key, 24);
+        state[14] = LittleEndian.readInt(key, 28);
+        state[15] = SIGMA[3];
+    }
+
+    /**
+     * XORs data with the next bytes of the key stream, in place.
+     *
+     * @param data data to encrypt or decrypt.
+     */
+    public void process(byte[] data)
+    {
+        for (int i = 0; i < data.length; i++)
+        {
+            if (keyStreamPosition == keyStream.length)
+                nextBlock();
+
+            data[i] ^= keyStream[keyStreamPosition++];
+        }
+    }
+
+    private void nextBlock()
+    {
+        int[] x = state.clone();
+        for (int i = 0; i < 10; i++)
+        {
+            //Column round
+            quarterRound(x, 0, 4, 8, 12);
+            quarterRound(x, 5, 9, 13, 1);
+            quarterRound(x, 10, 14, 2, 6);
+            quarterRound(x, 15, 3, 7, 11);
+
+            //Row round
+            quarterRound(x, 0, 1, 2, 3);
+            quarterRound(x, 5, 6, 7, 4);
+            quarterRound(x, 10, 11, 8, 9);
+            quarterRound(x, 15, 12, 13, 14);
+        }
+
+        for (int i = 0; i < 16; i++)
+        {
+            System.arraycopy(LittleEndian.intBytes(x[i] + state[i]), 0, keyStream, i * 4, 4);
+        }
+        keyStreamPosition = 0;
+
+        //64-bit block counter
+        state[8]++;
+        if (state[8] == 0)
+            state[9]++;
+    }
+
+    private static void quarterRound(int[] x, int a, int b, int c, int d)
+    {
+        x[b] ^= Integer.rotateLeft(x[a] + x[d], 7);
+        x[c] ^= Integer.rotateLeft(x[b] + x[a], 9);
+        x[d] ^= Integer.rotateLeft(x[c] + x[b], 13);
+        x[a] ^= Integer.rotateLeft(x[d] + x[c], 18);
+    }
+}
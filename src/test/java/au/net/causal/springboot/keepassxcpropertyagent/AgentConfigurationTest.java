@@ -0,0 +1,34 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+class AgentConfigurationTest
+{
+    @Test
+    void defaultAccessProfileDependsOnEntryUris()
+    {
+        String defaults = AgentConfiguration.parse(null).getAccessProfile();
+        String oneEntry = AgentConfiguration.parse("entryUri=spring://one").getAccessProfile();
+        String twoEntries = AgentConfiguration.parse("entryUri=spring://one,entryUri=spring://two").getAccessProfile();
+
+        assertThat(oneEntry).isNotEqualTo(defaults);
+        assertThat(twoEntries).isNotEqualTo(oneEntry);
+        assertThat(AgentConfiguration.parse("entryUri=spring://one").getAccessProfile()).isEqualTo(oneEntry);
+    }
+
+    @Test
+    void defaultAccessProfileIsValidFileName()
+    {
+        String profile = AgentConfiguration.parse("entryUri=spring://one").getAccessProfile();
+
+        assertThat(profile.matches("[A-Za-z0-9._-]+-[0-9a-f]{8}")).isTrue();
+    }
+
+    @Test
+    void configuredAccessProfile()
+    {
+        assertThat(AgentConfiguration.parse("entryUri=spring://one,accessProfile=myapp").getAccessProfile()).isEqualTo("myapp");
+    }
+}
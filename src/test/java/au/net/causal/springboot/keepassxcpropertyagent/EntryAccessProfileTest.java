@@ -0,0 +1,126 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+class EntryAccessProfileTest
+{
+    private static final List<String> ENTRY_URIS = List.of("spring://used", "spring://unused");
+
+    @TempDir
+    Path tempDir;
+
+    private Path profileFile()
+    {
+        return tempDir.resolve("profiles").resolve("app.properties");
+    }
+
+    @Test
+    void missingProfileReadsEverything()
+    {
+        EntryAccessProfile profile = EntryAccessProfile.load(profileFile());
+
+        assertThat(profile.isLazy("spring://used")).isFalse();
+        assertThat(profile.getKnownKeys("spring://used")).isEmpty();
+    }
+
+    @Test
+    void roundTrip()
+    throws IOException
+    {
+        EntryAccessProfile profile = EntryAccessProfile.load(profileFile());
+        profile.recordLoaded("spring://used", Set.of("db.password"));
+        profile.recordLoaded("spring://unused", Set.of("db.url", "db.user"));
+        profile.recordAccess("spring://used");
+        profile.save(ENTRY_URIS);
+
+        EntryAccessProfile loaded = EntryAccessProfile.load(profileFile());
+
+        assertThat(loaded.isLazy("spring://used")).isFalse();
+        assertThat(loaded.isLazy("spring://unused")).isTrue();
+        assertThat(loaded.getKnownKeys("spring://unused")).containsExactlyInAnyOrder("db.url", "db.user");
+    }
+
+    @Test
+    void keysWithSeparatorsRoundTrip()
+    throws IOException
+    {
+        Set<String> keys = Set.of("servers[0]", "hosts,with,commas", "back\\slash", "trailing\\", ",", "a\\,b");
+
+        EntryAccessProfile profile = EntryAccessProfile.load(profileFile());
+        profile.recordLoaded("spring://unused", keys);
+        profile.save(ENTRY_URIS);
+
+        assertThat(EntryAccessProfile.load(profileFile()).getKnownKeys("spring://unused")).containsExactlyInAnyOrder(keys.toArray());
+    }
+
+    @Test
+    void entriesNotLoadedKeepPreviousState()
+    throws IOException
+    {
+        EntryAccessProfile first = EntryAccessProfile.load(profileFile());
+        first.recordLoaded("spring://unused", Set.of("db.url"));
+        first.save(ENTRY_URIS);
+
+        //Lazy entry is never needed in the second run
+        EntryAccessProfile second = EntryAccessProfile.load(profileFile());
+        second.recordLoaded("spring://used", Set.of("db.password"));
+        second.recordAccess("spring://used");
+        second.save(ENTRY_URIS);
+
+        EntryAccessProfile loaded = EntryAccessProfile.load(profileFile());
+        assertThat(loaded.isLazy("spring://used")).isFalse();
+        assertThat(loaded.isLazy("spring://unused")).isTrue();
+        assertThat(loaded.getKnownKeys("spring://unused")).containsExactly("db.url");
+    }
+
+    @Test
+    void nothingLoadedKeepsProfile()
+    throws IOException
+    {
+        EntryAccessProfile first = EntryAccessProfile.load(profileFile());
+        first.recordLoaded("spring://unused", Set.of("db.url"));
+        first.save(ENTRY_URIS);
+        String saved = Files.readString(profileFile());
+
+        EntryAccessProfile.load(profileFile()).save(ENTRY_URIS);
+
+        assertThat(Files.readString(profileFile())).isEqualTo(saved);
+    }
+
+    @Test
+    void saveLeavesNoTemporaryFiles()
+    throws IOException
+    {
+        EntryAccessProfile profile = EntryAccessProfile.load(profileFile());
+        profile.recordLoaded("spring://used", Set.of("db.password"));
+        profile.save(ENTRY_URIS);
+        profile.save(ENTRY_URIS);
+
+        try (Stream<Path> files = Files.list(profileFile().getParent()))
+        {
+            assertThat(files.toList()).containsExactly(profileFile());
+        }
+    }
+
+    @Test
+    void corruptedProfileReadsEverything()
+    throws IOException
+    {
+        Files.createDirectories(profileFile().getParent());
+        Files.writeString(profileFile(), "used.spring\\://unused=false\nkeys.spring\\://unused=\\uZZZZ\n");
+
+        EntryAccessProfile profile = EntryAccessProfile.load(profileFile());
+
+        assertThat(profile.isLazy("spring://unused")).isFalse();
+    }
+}
@@ -0,0 +1,74 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+class EntryAttributeMapperTest
+{
+    private final EntryAttributeMapper mapper = new EntryAttributeMapper(new AgentConfiguration());
+
+    private Map<String, Object> map(Map<String, String> attributes)
+    {
+        Map<String, Object> valueMap = new HashMap<>();
+        mapper.mapAttributes("spring://test", attributes, valueMap);
+        return valueMap;
+    }
+
+    @Test
+    void singleAttributesAreTrimmed()
+    {
+        Map<String, Object> result = map(Map.of("KPH: spring: db.password ", "  secret  ",
+                                                "Title", "not a property"));
+
+        assertThat(result).containsOnlyKeys("db.password")
+                          .containsEntry("db.password", "secret");
+    }
+
+    @Test
+    void yamlBlockValuesAreNotTrimmed()
+    {
+        Map<String, Object> result = map(Map.of("KPH: spring-yaml:", """
+            quoted: "  x "
+            literal: |
+              line
+            kept: |+
+              line
+
+            stripped: |-
+              line
+            """));
+
+        assertThat(result).containsEntry("quoted", "  x ")
+                          .containsEntry("literal", "line\n")
+                          .containsEntry("kept", "line\n\n")
+                          .containsEntry("stripped", "line");
+    }
+
+    @Test
+    void propertiesBlockWithPrefix()
+    {
+        Map<String, Object> result = map(Map.of("KPH: spring-properties: spring.datasource", """
+            url=jdbc:postgresql://db/app
+            password=secret\\u0020
+            """));
+
+        assertThat(result).containsOnlyKeys("spring.datasource.url", "spring.datasource.password")
+                          .containsEntry("spring.datasource.url", "jdbc:postgresql://db/app")
+                          .containsEntry("spring.datasource.password", "secret ");
+    }
+
+    @Test
+    void malformedBlockIsSkipped()
+    {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("KPH: spring-yaml:", "- not a mapping");
+        attributes.put("KPH: spring:other", "value");
+
+        assertThat(map(attributes)).containsOnlyKeys("other");
+    }
+}
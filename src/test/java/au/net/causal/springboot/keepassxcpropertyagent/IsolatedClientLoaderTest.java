@@ -0,0 +1,290 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import au.net.causal.springboot.keepassxcpropertyagent.connection.KeepassCredentialsStore;
+import au.net.causal.springboot.keepassxcpropertyagent.connection.KeepassProxy;
+import au.net.causal.springboot.keepassxcpropertyagent.connection.StandardKeepassCredentialsStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+class IsolatedClientLoaderTest
+{
+    private static final URL AGENT_LOCATION = KdbxPropertyReader.class.getProtectionDomain().getCodeSource().getLocation();
+
+    @TempDir
+    Path tempDir;
+
+    private Path copyFixture(String name)
+    throws IOException
+    {
+        Path file = tempDir.resolve(name);
+        try (InputStream is = IsolatedClientLoaderTest.class.getResourceAsStream("kdbx/" + name))
+        {
+            Files.copy(is, file);
+        }
+        return file;
+    }
+
+    /**
+     * Waits for an object to be garbage collected, failing if it is still reachable after a while.
+     */
+    private static void assertCollected(WeakReference<?> reference)
+    throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000L;
+        while (reference.get() != null)
+        {
+            if (System.currentTimeMillis() > deadline)
+                fail("Client class loader is still reachable after the client was released");
+
+            System.gc();
+            Thread.sleep(10L);
+        }
+    }
+
+    private static WeakReference<ClassLoader> clientClassLoader(Object clientInstance)
+    {
+        ClassLoader clientClassLoader = clientInstance.getClass().getClassLoader();
+        assertThat(clientClassLoader).isNotSameAs(IsolatedClientLoaderTest.class.getClassLoader());
+        return new WeakReference<>(clientClassLoader);
+    }
+
+    @Test
+    void clientClassesAreLoadedSeparatelyEachTime()
+    throws ReflectiveOperationException
+    {
+        IsolatedClientLoader loader = new IsolatedClientLoader(new AgentConfiguration(), AGENT_LOCATION, getClass().getClassLoader(), true);
+
+        loader.acquire();
+        PropertyReader first = loader.getInstance(KdbxPropertyReader.class.getName(), PropertyReader.class);
+        assertThat(loader.getInstance(KdbxPropertyReader.class.getName(), PropertyReader.class)).isSameAs(first);
+        loader.release();
+
+        loader.acquire();
+        PropertyReader second = loader.getInstance(KdbxPropertyReader.class.getName(), PropertyReader.class);
+        loader.release();
+
+        assertThat(first.getClass()).isNotSameAs(KdbxPropertyReader.class);
+        assertThat(second.getClass()).isNotSameAs(first.getClass());
+        assertThat(second.getClass().getName()).isEqualTo(KdbxPropertyReader.class.getName());
+    }
+
+    @Test
+    void sharedClassesComeFromAgent()
+    throws ReflectiveOperationException
+    {
+        IsolatedClientLoader loader = new IsolatedClientLoader(new AgentConfiguration(), AGENT_LOCATION, getClass().getClassLoader(), true);
+
+        loader.acquire();
+        try
+        {
+            //Casting to the agent's PropertyReader only works if the client did not load its own copy
+            PropertyReader reader = loader.getInstance(KdbxPropertyReader.class.getName(), PropertyReader.class);
+            assertThat(reader.getClass().getClassLoader()).isNotSameAs(getClass().getClassLoader());
+        }
+        finally
+        {
+            loader.release();
+        }
+    }
+
+    @Test
+    void notIsolated()
+    throws ReflectiveOperationException
+    {
+        IsolatedClientLoader loader = new IsolatedClientLoader(new AgentConfiguration(), AGENT_LOCATION, getClass().getClassLoader(), false);
+
+        loader.acquire();
+        PropertyReader first = loader.getInstance(KdbxPropertyReader.class.getName(), PropertyReader.class);
+        loader.release();
+        loader.acquire();
+        PropertyReader second = loader.getInstance(KdbxPropertyReader.class.getName(), PropertyReader.class);
+        loader.release();
+
+        assertThat(first.getClass()).isSameAs(KdbxPropertyReader.class);
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    void kdbxEntriesOutliveClient()
+    throws IOException
+    {
+        AgentConfiguration settings = new AgentConfiguration();
+        settings.setKdbxFile(copyFixture("kdbx4-aes-aeskdf-keyfile-only.kdbx"));
+        settings.setKdbxKeyFile(copyFixture("keyfile-v2.keyx"));
+        settings.setKdbxPasswordVariable("ISOLATED_CLIENT_LOADER_TEST_UNSET_PASSWORD");
+
+        IsolatedClientLoader loader = new IsolatedClientLoader(settings, AGENT_LOCATION, getClass().getClassLoader(), true);
+        PropertyReader reader = new IsolatedPropertyReader(loader, KdbxPropertyReader.class.getName(), new KdbxEntryIndex());
+
+        Map<String, Object> first = new HashMap<>();
+        reader.readProperties("spring://app", first);
+        assertThat(first).containsEntry("db.user", "scott");
+
+        //Client has been discarded, reading again must not need the file
+        Files.delete(settings.getKdbxFile());
+
+        Map<String, Object> second = new HashMap<>();
+        reader.readProperties("spring://second", second);
+        assertThat(second).containsEntry("second.key", "second-value");
+    }
+
+    /*
+     * The unloading tests do their work in separate methods that only return a weak reference, so that no local
+     * variable of the test method keeps anything from the client reachable.
+     * When running tests, libraries are not in the agent location and so are loaded from the test class path rather than
+     * the client class loader.  These tests check that nothing they hold on to, such as a listener registered with a
+     * KeepassXC connection, keeps the client reachable.
+     */
+
+    @Test
+    void clientIsUnloadedAfterReadingKdbx()
+    throws IOException, InterruptedException
+    {
+        AgentConfiguration settings = new AgentConfiguration();
+        settings.setKdbxFile(copyFixture("kdbx4-aes-aeskdf-keyfile-only.kdbx"));
+        settings.setKdbxKeyFile(copyFixture("keyfile-v2.keyx"));
+        settings.setKdbxPasswordVariable("ISOLATED_CLIENT_LOADER_TEST_UNSET_PASSWORD");
+        IsolatedClientLoader loader = new IsolatedClientLoader(settings, AGENT_LOCATION, getClass().getClassLoader(), true);
+        KdbxEntryIndex entryIndex = new KdbxEntryIndex();
+        Map<String, Object> properties = new HashMap<>();
+
+        WeakReference<ClassLoader> clientClassLoader = readKdbx(loader, entryIndex, properties);
+
+        assertCollected(clientClassLoader);
+
+        //What the agent keeps after reading must not have come from the client
+        assertThat(properties).containsEntry("db.user", "scott");
+        assertThat(entryIndex.getEntries()).isNotNull();
+    }
+
+    private static WeakReference<ClassLoader> readKdbx(IsolatedClientLoader loader, KdbxEntryIndex entryIndex, Map<String, Object> properties)
+    throws IOException
+    {
+        loader.acquire();
+        try
+        {
+            PropertyReader reader = loader.getInstance(KdbxPropertyReader.class.getName(), PropertyReader.class, entryIndex);
+            reader.readProperties("spring://app", properties);
+            return clientClassLoader(reader);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            loader.release();
+        }
+    }
+
+    @Test
+    void clientIsUnloadedAfterWeaving()
+    throws IOException, ReflectiveOperationException, InterruptedException
+    {
+        IsolatedClientLoader loader = new IsolatedClientLoader(new AgentConfiguration(), AGENT_LOCATION, getClass().getClassLoader(), true);
+
+        assertCollected(weave(loader));
+    }
+
+    private static WeakReference<ClassLoader> weave(IsolatedClientLoader loader)
+    throws IOException, ReflectiveOperationException
+    {
+        byte[] classfileBuffer;
+        try (InputStream is = IsolatedClientLoaderTest.class.getResourceAsStream("IsolatedClientLoaderTest.class"))
+        {
+            classfileBuffer = is.readAllBytes();
+        }
+
+        loader.acquire();
+        try
+        {
+            ClassWeaver weaver = loader.getInstance(EnvironmentPostProcessorWeaver.class.getName(), ClassWeaver.class);
+
+            //Not the class the weaver expects, but Javassist still gets to parse it
+            assertThatThrownBy(() -> weaver.weave(IsolatedClientLoaderTest.class.getClassLoader(), classfileBuffer))
+                    .isInstanceOf(IOException.class);
+
+            return clientClassLoader(weaver);
+        }
+        finally
+        {
+            loader.release();
+        }
+    }
+
+    @Test
+    void clientIsUnloadedAfterKeepassConnection()
+    throws ReflectiveOperationException, InterruptedException
+    {
+        IsolatedClientLoader loader = new IsolatedClientLoader(new AgentConfiguration(), AGENT_LOCATION, getClass().getClassLoader(), true);
+
+        assertCollected(connectKeepass(loader, tempDir.resolve("credentials")));
+    }
+
+    private static WeakReference<ClassLoader> connectKeepass(IsolatedClientLoader loader, Path credentialsStoreFile)
+    throws ReflectiveOperationException
+    {
+        loader.acquire();
+        try
+        {
+            PropertyReader reader = loader.getInstance(KeepassXCPropertyReader.class.getName(), PropertyReader.class);
+            ClassLoader clientClassLoader = reader.getClass().getClassLoader();
+
+            //Proxy from the client, registering the client's listener with the connection
+            Object credentialsStore = clientClassLoader.loadClass(StandardKeepassCredentialsStore.class.getName())
+                                                       .getConstructor(Path.class)
+                                                       .newInstance(credentialsStoreFile);
+            Class<?> proxyClass = clientClassLoader.loadClass(KeepassProxy.class.getName());
+            AutoCloseable proxy = (AutoCloseable)proxyClass.getConstructor(clientClassLoader.loadClass(KeepassCredentialsStore.class.getName()))
+                                                           .newInstance(credentialsStore);
+            try
+            {
+                //Only opens the connection without associating, so this does not need anything from KeepassXC if it is running
+                proxyClass.getMethod("connect").invoke(proxy);
+            }
+            catch (InvocationTargetException e)
+            {
+                //KeepassXC is not running, connection threads and listeners have still been set up
+            }
+            finally
+            {
+                proxyClass.getMethod("close").invoke(proxy);
+            }
+
+            return clientClassLoader(reader);
+        }
+        finally
+        {
+            loader.release();
+        }
+    }
+
+    @Test
+    void releasedTooManyTimes()
+    {
+        IsolatedClientLoader loader = new IsolatedClientLoader(new AgentConfiguration(), AGENT_LOCATION, getClass().getClassLoader(), true);
+
+        assertThatThrownBy(loader::release).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void notAcquired()
+    {
+        IsolatedClientLoader loader = new IsolatedClientLoader(new AgentConfiguration(), AGENT_LOCATION, getClass().getClassLoader(), true);
+
+        assertThatThrownBy(() -> loader.getInstance(KdbxPropertyReader.class.getName(), PropertyReader.class))
+                .isInstanceOf(IllegalStateException.class);
+    }
+}
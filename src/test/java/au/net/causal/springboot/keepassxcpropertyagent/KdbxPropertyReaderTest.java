@@ -0,0 +1,150 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Reads the key-file-only fixture database, since the password for a KDBX file can only come from an environment
+ * variable.
+ */
+class KdbxPropertyReaderTest
+{
+    @TempDir
+    Path tempDir;
+
+    private AgentConfiguration settings;
+
+    @BeforeEach
+    void setUp()
+    throws IOException
+    {
+        settings = new AgentConfiguration();
+        settings.setKdbxFile(copyFixture("kdbx4-aes-aeskdf-keyfile-only.kdbx"));
+        settings.setKdbxKeyFile(copyFixture("keyfile-v2.keyx"));
+        settings.setKdbxPasswordVariable("KDBX_PROPERTY_READER_TEST_UNSET_PASSWORD");
+    }
+
+    private Path copyFixture(String name)
+    throws IOException
+    {
+        Path file = tempDir.resolve(name);
+        try (InputStream is = KdbxPropertyReaderTest.class.getResourceAsStream("kdbx/" + name))
+        {
+            Files.copy(is, file);
+        }
+        return file;
+    }
+
+    private static Map<String, Object> read(PropertyReader reader, String entryName)
+    throws IOException
+    {
+        Map<String, Object> valueMap = new HashMap<>();
+        reader.readProperties(entryName, valueMap);
+        return valueMap;
+    }
+
+    @Test
+    void readsPrefixedAttributes()
+    throws IOException
+    {
+        Map<String, Object> properties = read(new KdbxPropertyReader(settings), "spring://App/");
+
+        //History and recycle bin entries with the same URL do not contribute properties
+        assertThat(properties).containsOnlyKeys("db.password", "db.user", "app.a.b", "app.a.c[0]", "app.a.c[1]")
+                              .containsEntry("db.password", "s3cr<et & p\u00e4ssw\u00f6rd")
+                              .containsEntry("db.user", "scott")
+                              .containsEntry("app.a.b", "1")
+                              .containsEntry("app.a.c[0]", "x")
+                              .containsEntry("app.a.c[1]", "y");
+    }
+
+    @Test
+    void urlMatchingIgnoresCaseAndTrailingSlashes()
+    throws IOException
+    {
+        KdbxPropertyReader reader = new KdbxPropertyReader(settings);
+
+        assertThat(read(reader, "spring://app")).containsEntry("db.user", "scott");
+        assertThat(read(reader, "SPRING://APP//")).containsEntry("db.user", "scott");
+        assertThat(read(reader, " spring://App/ ")).containsEntry("db.user", "scott");
+    }
+
+    @Test
+    void additionalUrlField()
+    throws IOException
+    {
+        Map<String, Object> properties = read(new KdbxPropertyReader(settings), "spring://second/");
+
+        assertThat(properties).containsOnlyKeys("second.key")
+                              .containsEntry("second.key", "second-value");
+    }
+
+    @Test
+    void unknownEntry()
+    throws IOException
+    {
+        assertThat(read(new KdbxPropertyReader(settings), "spring://unknown")).isEmpty();
+    }
+
+    @Test
+    void entryWithoutPrefixedAttributes()
+    throws IOException
+    {
+        assertThat(read(new KdbxPropertyReader(settings), "https://example.com")).isEmpty();
+    }
+
+    @Test
+    void databaseIsOnlyReadOnce()
+    throws IOException
+    {
+        KdbxPropertyReader reader = new KdbxPropertyReader(settings);
+        read(reader, "spring://app");
+
+        Files.delete(settings.getKdbxFile());
+
+        assertThat(read(reader, "spring://second")).containsEntry("second.key", "second-value");
+    }
+
+    @Test
+    void sharedIndexIsUsedByLaterReaders()
+    throws IOException
+    {
+        KdbxEntryIndex entryIndex = new KdbxEntryIndex();
+        read(new KdbxPropertyReader(settings, entryIndex), "spring://app");
+
+        Files.delete(settings.getKdbxFile());
+
+        assertThat(read(new KdbxPropertyReader(settings, entryIndex), "spring://second")).containsEntry("second.key", "second-value");
+    }
+
+    @Test
+    void wrongKeyFile()
+    throws IOException
+    {
+        Path wrongKeyFile = tempDir.resolve("wrong.key");
+        Files.writeString(wrongKeyFile, "not the right key");
+        settings.setKdbxKeyFile(wrongKeyFile);
+
+        assertThatThrownBy(() -> read(new KdbxPropertyReader(settings), "spring://app")).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void noCredentials()
+    {
+        settings.setKdbxKeyFile(null);
+
+        assertThatThrownBy(() -> read(new KdbxPropertyReader(settings), "spring://app"))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("KDBX_PROPERTY_READER_TEST_UNSET_PASSWORD");
+    }
+}
@@ -0,0 +1,386 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.assertj.core.api.Assertions.*;
+
+class KeepassPropertySourceMapTest
+{
+    @TempDir
+    Path tempDir;
+
+    private final FakePropertyReader reader = new FakePropertyReader();
+    private final KeepassEntryCache entryCache = new KeepassEntryCache(reader);
+
+    private KeepassPropertySourceMap map(List<String> entryUris, Map<String, Map<String, Object>> loadedEntries,
+                                         Map<String, Set<String>> lazyEntryKeys)
+    {
+        return new KeepassPropertySourceMap(entryUris, loadedEntries, lazyEntryKeys, entryCache, null);
+    }
+
+    private KeepassPropertySourceMap emptyMap()
+    {
+        return map(List.of(), Map.of(), Map.of());
+    }
+
+    @Test
+    void placeholderLookupReadsReferencedEntry()
+    {
+        reader.entries.put("spring://other", Map.of("password", "secret"));
+        reader.entries.put("spring://unused", Map.of("password", "unused"));
+
+        KeepassPropertySourceMap map = emptyMap();
+
+        assertThat(map.get("keepassxc:spring://other#password")).isEqualTo("secret");
+        assertThat(reader.reads("spring://other")).isEqualTo(1);
+        assertThat(reader.reads("spring://unused")).isEqualTo(0);
+    }
+
+    @Test
+    void placeholderLookupSplitsOnLastHash()
+    {
+        reader.entries.put("spring://other#fragment", Map.of("password", "secret"));
+
+        assertThat(emptyMap().get("keepassxc:spring://other#fragment#password")).isEqualTo("secret");
+    }
+
+    @Test
+    void placeholderLookupIsOnlyReadOnce()
+    {
+        reader.entries.put("spring://other", Map.of("user", "me", "password", "secret"));
+
+        KeepassPropertySourceMap map = emptyMap();
+        map.get("keepassxc:spring://other#user");
+        map.get("keepassxc:spring://other#password");
+        map.get("keepassxc:spring://other#password");
+
+        assertThat(reader.reads("spring://other")).isEqualTo(1);
+    }
+
+    @Test
+    void concurrentReferencesToSameEntryShareOneRead()
+    throws InterruptedException
+    {
+        String entryUri = "spring://concurrent-" + System.nanoTime();
+        reader.entries.put(entryUri, Map.of("password", "secret"));
+        reader.block = new CountDownLatch(1);
+
+        KeepassPropertySourceMap map = emptyMap();
+        int callers = 8;
+        AtomicReferenceArray<Object> results = new AtomicReferenceArray<>(callers);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < callers; i++)
+        {
+            int index = i;
+            Thread thread = new Thread(() -> results.set(index, map.get("keepassxc:" + entryUri + "#password")));
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        //Every caller is either reading the entry, which waits for the latch, or waiting for the one that is
+        long deadline = System.currentTimeMillis() + 10_000L;
+        for (Thread thread : threads)
+        {
+            while (thread.getState() != Thread.State.WAITING)
+            {
+                if (System.currentTimeMillis() > deadline)
+                    fail("Callers did not block in time");
+
+                Thread.sleep(1L);
+            }
+        }
+        reader.block.countDown();
+
+        for (int i = 0; i < callers; i++)
+        {
+            threads.get(i).join(10_000L);
+            assertThat(results.get(i)).isEqualTo("secret");
+        }
+        assertThat(reader.reads(entryUri)).isEqualTo(1);
+    }
+
+    @Test
+    void malformedReferenceFails()
+    {
+        assertThatThrownBy(() -> emptyMap().get("keepassxc:spring://other"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("expected keepassxc:<entry URI>#<property name>");
+    }
+
+    @Test
+    void referenceToMissingPropertyFails()
+    {
+        reader.entries.put("spring://other", Map.of("password", "secret"));
+
+        assertThatThrownBy(() -> emptyMap().get("keepassxc:spring://other#username"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("has no property 'username'");
+    }
+
+    @Test
+    void referenceToUnreadableEntryFails()
+    {
+        reader.failures.put("spring://other", new IOException("KeepassXC is locked"));
+
+        assertThatThrownBy(() -> emptyMap().get("keepassxc:spring://other#password"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("KeepassXC is locked");
+    }
+
+    @Test
+    void containsKeyForResolvableReference()
+    {
+        reader.entries.put("spring://other", Map.of("password", "secret"));
+
+        assertThat(emptyMap().containsKey("keepassxc:spring://other#password")).isTrue();
+    }
+
+    @Test
+    void containsKeyIsFalseForUnresolvableReference()
+    {
+        reader.entries.put("spring://other", Map.of("password", "secret"));
+        reader.failures.put("spring://broken", new IOException("KeepassXC is locked"));
+
+        KeepassPropertySourceMap map = emptyMap();
+
+        assertThat(map.containsKey("keepassxc:spring://other")).isFalse();
+        assertThat(map.containsKey("keepassxc:spring://other#username")).isFalse();
+        assertThat(map.containsKey("keepassxc:spring://broken#password")).isFalse();
+        assertThat(map.containsKey("other.password")).isFalse();
+    }
+
+    @Test
+    void referencesAreNotInKeySet()
+    {
+        reader.entries.put("spring://other", Map.of("password", "secret"));
+
+        KeepassPropertySourceMap map = emptyMap();
+        map.get("keepassxc:spring://other#password");
+
+        assertThat(map.keySet()).isEmpty();
+    }
+
+    @Test
+    void laterEntriesTakePrecedence()
+    {
+        KeepassPropertySourceMap map = map(List.of("spring://first", "spring://second"),
+                                           Map.of("spring://first", Map.of("url", "first", "user", "first"),
+                                                  "spring://second", Map.of("url", "second")),
+                                           Map.of());
+
+        assertThat(map.get("url")).isEqualTo("second");
+        assertThat(map.get("user")).isEqualTo("first");
+    }
+
+    @Test
+    void laterLazyEntryTakesPrecedence()
+    {
+        reader.entries.put("spring://second", Map.of("url", "second"));
+
+        KeepassPropertySourceMap map = map(List.of("spring://first", "spring://second"),
+                                           Map.of("spring://first", Map.of("url", "first", "user", "first")),
+                                           Map.of("spring://second", Set.of("url")));
+
+        assertThat(map.get("user")).isEqualTo("first");
+        assertThat(reader.reads("spring://second")).isEqualTo(0);
+
+        assertThat(map.get("url")).isEqualTo("second");
+        assertThat(map.get("url")).isEqualTo("second");
+        assertThat(reader.reads("spring://second")).isEqualTo(1);
+    }
+
+    @Test
+    void configuredEntriesTakePrecedenceOverReferences()
+    {
+        reader.entries.put("spring://other", Map.of("password", "referenced"));
+
+        KeepassPropertySourceMap map = map(List.of("spring://first"),
+                                           Map.of("spring://first", Map.of("keepassxc:spring://other#password", "configured")),
+                                           Map.of());
+
+        assertThat(map.get("keepassxc:spring://other#password")).isEqualTo("configured");
+        assertThat(reader.reads("spring://other")).isEqualTo(0);
+    }
+
+    @Test
+    void unreadableLazyEntryFallsBackToEarlierEntries()
+    {
+        reader.failures.put("spring://second", new IOException("KeepassXC is locked"));
+
+        KeepassPropertySourceMap map = map(List.of("spring://first", "spring://second"),
+                                           Map.of("spring://first", Map.of("url", "first")),
+                                           Map.of("spring://second", Set.of("url")));
+
+        assertThat(map.get("url")).isEqualTo("first");
+        assertThat(map.get("url")).isEqualTo("first");
+        assertThat(reader.reads("spring://second")).isEqualTo(1);
+    }
+
+    @Test
+    void lazyEntryWithChangedPropertiesUpdatesKeySet()
+    {
+        reader.entries.put("spring://first", Map.of("url", "first", "added", "new"));
+
+        KeepassPropertySourceMap map = map(List.of("spring://first"),
+                                           Map.of(),
+                                           Map.of("spring://first", Set.of("url", "removed")));
+
+        assertThat(map.keySet()).containsExactlyInAnyOrder("url", "removed");
+        assertThat(map.get("url")).isEqualTo("first");
+        assertThat(map.keySet()).containsExactlyInAnyOrder("url", "added");
+    }
+
+    @Test
+    void iteratingEntriesDoesNotLoadLazyEntries()
+    {
+        reader.entries.put("spring://lazy", Map.of("url", "lazy"));
+
+        KeepassPropertySourceMap map = map(List.of("spring://eager", "spring://lazy"),
+                                           Map.of("spring://eager", Map.of("user", "eager")),
+                                           Map.of("spring://lazy", Set.of("url")));
+
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : map.entrySet())
+        {
+            keys.add(entry.getKey());
+        }
+
+        assertThat(keys).containsExactlyInAnyOrder("user", "url");
+        assertThat(reader.reads("spring://lazy")).isEqualTo(0);
+    }
+
+    @Test
+    void entryValueLoadsLazyEntry()
+    {
+        reader.entries.put("spring://lazy", Map.of("url", "lazy"));
+
+        KeepassPropertySourceMap map = map(List.of("spring://lazy"),
+                                           Map.of(),
+                                           Map.of("spring://lazy", Set.of("url")));
+
+        Map.Entry<String, Object> entry = map.entrySet().iterator().next();
+        assertThat(reader.reads("spring://lazy")).isEqualTo(0);
+
+        assertThat(entry.getValue()).isEqualTo("lazy");
+        assertThat(reader.reads("spring://lazy")).isEqualTo(1);
+    }
+
+    @Test
+    void toStringDoesNotLoadLazyEntries()
+    {
+        reader.entries.put("spring://lazy", Map.of("url", "lazy"));
+
+        KeepassPropertySourceMap map = map(List.of("spring://eager", "spring://lazy"),
+                                           Map.of("spring://eager", Map.of("password", "secret")),
+                                           Map.of("spring://lazy", Set.of("url")));
+
+        String description = map.toString();
+
+        assertThat(description).contains("password");
+        assertThat(description).contains("url");
+        assertThat(description.contains("secret")).isFalse();
+        assertThat(reader.reads("spring://lazy")).isEqualTo(0);
+    }
+
+    @Test
+    void accessProfileMakesUnusedEntriesLazy()
+    throws IOException
+    {
+        List<String> entryUris = List.of("spring://used", "spring://unused");
+        reader.entries.put("spring://used", Map.of("password", "secret"));
+        reader.entries.put("spring://unused", Map.of("url", "jdbc:h2:mem:"));
+        Path profileFile = tempDir.resolve("app.properties");
+
+        //First run has no profile, so every entry is read up front
+        EntryAccessProfile firstProfile = EntryAccessProfile.load(profileFile);
+        assertThat(firstProfile.isLazy("spring://used")).isFalse();
+        assertThat(firstProfile.isLazy("spring://unused")).isFalse();
+        Map<String, Map<String, Object>> loadedEntries = KeePassXCPropertyAgent.doKeepass(entryUris, entryCache);
+        loadedEntries.forEach((entryUri, properties) -> firstProfile.recordLoaded(entryUri, properties.keySet()));
+        KeepassPropertySourceMap firstMap = new KeepassPropertySourceMap(entryUris, loadedEntries, Map.of(), entryCache, firstProfile);
+        assertThat(firstMap.get("password")).isEqualTo("secret");
+        firstProfile.save(entryUris);
+
+        //Second run only reads the used entry up front
+        EntryAccessProfile secondProfile = EntryAccessProfile.load(profileFile);
+        assertThat(secondProfile.isLazy("spring://used")).isFalse();
+        assertThat(secondProfile.isLazy("spring://unused")).isTrue();
+        assertThat(secondProfile.getKnownKeys("spring://unused")).containsExactly("url");
+
+        FakePropertyReader secondReader = new FakePropertyReader();
+        secondReader.entries.putAll(reader.entries);
+        KeepassEntryCache secondCache = new KeepassEntryCache(secondReader);
+        Map<String, Map<String, Object>> eagerEntries = KeePassXCPropertyAgent.doKeepass(List.of("spring://used"), secondCache);
+        eagerEntries.forEach((entryUri, properties) -> secondProfile.recordLoaded(entryUri, properties.keySet()));
+        KeepassPropertySourceMap secondMap = new KeepassPropertySourceMap(entryUris, eagerEntries,
+                                                                          Map.of("spring://unused", secondProfile.getKnownKeys("spring://unused")),
+                                                                          secondCache, secondProfile);
+
+        assertThat(secondMap.keySet()).containsExactlyInAnyOrder("password", "url");
+        assertThat(secondReader.reads("spring://unused")).isEqualTo(0);
+
+        //Reading a property of the lazy entry loads it and records that it was used
+        assertThat(secondMap.get("url")).isEqualTo("jdbc:h2:mem:");
+        assertThat(secondReader.reads("spring://unused")).isEqualTo(1);
+        secondProfile.save(entryUris);
+
+        assertThat(EntryAccessProfile.load(profileFile).isLazy("spring://unused")).isFalse();
+    }
+
+    /**
+     * Reads properties from in-memory entries and counts reads of each entry.
+     */
+    private static class FakePropertyReader implements PropertyReader
+    {
+        private final ConcurrentMap<String, Map<String, Object>> entries = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, IOException> failures = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, AtomicInteger> reads = new ConcurrentHashMap<>();
+        private volatile CountDownLatch block;
+
+        @Override
+        public void readProperties(String entryName, Map<String, Object> valueMap)
+        throws IOException
+        {
+            reads.computeIfAbsent(entryName, k -> new AtomicInteger()).incrementAndGet();
+
+            CountDownLatch currentBlock = block;
+            if (currentBlock != null)
+            {
+                try
+                {
+                    currentBlock.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IOException("Interrupted", e);
+                }
+            }
+
+            IOException failure = failures.get(entryName);
+            if (failure != null)
+                throw failure;
+
+            valueMap.putAll(entries.getOrDefault(entryName, Map.of()));
+        }
+
+        public int reads(String entryName)
+        {
+            AtomicInteger count = reads.get(entryName);
+            return (count == null ? 0 : count.get());
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+
+class PropertyBlockParserTest
+{
+    @Test
+    void propertiesBlock()
+    {
+        Map<String, String> result = PropertyBlockParser.parseProperties("""
+            # comment
+            spring.datasource.url=jdbc:postgresql://db/app
+            spring.datasource.password = secret
+            multi=one \\
+                  two
+            """);
+
+        assertThat(result).containsOnlyKeys("spring.datasource.url", "spring.datasource.password", "multi")
+                          .containsEntry("spring.datasource.url", "jdbc:postgresql://db/app")
+                          .containsEntry("spring.datasource.password", "secret")
+                          .containsEntry("multi", "one two");
+    }
+
+    @Test
+    void malformedPropertiesBlock()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseProperties("key=\\uZZZZ"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void nestedMappings()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            spring:
+              datasource:
+                url: jdbc:postgresql://db/app
+                password: secret
+              application:
+                name: app
+            server.port: 8080
+            """);
+
+        assertThat(result).containsOnlyKeys("spring.datasource.url", "spring.datasource.password", "spring.application.name", "server.port")
+                          .containsEntry("spring.datasource.url", "jdbc:postgresql://db/app")
+                          .containsEntry("spring.datasource.password", "secret")
+                          .containsEntry("spring.application.name", "app")
+                          .containsEntry("server.port", "8080");
+    }
+
+    @Test
+    void sequences()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            hosts:
+              - one
+              - two
+            ports:
+            - 80
+            - 443
+            """);
+
+        assertThat(result).containsOnlyKeys("hosts[0]", "hosts[1]", "ports[0]", "ports[1]")
+                          .containsEntry("hosts[0]", "one")
+                          .containsEntry("hosts[1]", "two")
+                          .containsEntry("ports[0]", "80")
+                          .containsEntry("ports[1]", "443");
+    }
+
+    @Test
+    void sequenceOfMappings()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            servers:
+              - host: one
+                port: 80
+              - host: two
+                tags:
+                  - a
+            """);
+
+        assertThat(result).containsOnlyKeys("servers[0].host", "servers[0].port", "servers[1].host", "servers[1].tags[0]")
+                          .containsEntry("servers[0].host", "one")
+                          .containsEntry("servers[0].port", "80")
+                          .containsEntry("servers[1].host", "two")
+                          .containsEntry("servers[1].tags[0]", "a");
+    }
+
+    @Test
+    void flowSequences()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            plain: [a, b ,c]
+            quoted: [a, "b,c", 'd, ''e''', "f # g"]
+            empty: []
+            trailing: [a, b, ]
+            """);
+
+        assertThat(result).containsOnlyKeys("plain[0]", "plain[1]", "plain[2]",
+                                            "quoted[0]", "quoted[1]", "quoted[2]", "quoted[3]",
+                                            "empty",
+                                            "trailing[0]", "trailing[1]")
+                          .containsEntry("plain[0]", "a")
+                          .containsEntry("plain[1]", "b")
+                          .containsEntry("plain[2]", "c")
+                          .containsEntry("quoted[0]", "a")
+                          .containsEntry("quoted[1]", "b,c")
+                          .containsEntry("quoted[2]", "d, 'e'")
+                          .containsEntry("quoted[3]", "f # g")
+                          .containsEntry("empty", "")
+                          .containsEntry("trailing[1]", "b");
+    }
+
+    @Test
+    void literalBlockScalar()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            key: |
+              line one
+                indented
+
+              # not a comment
+            other: x
+            """);
+
+        assertThat(result).containsEntry("key", "line one\n  indented\n\n# not a comment\n")
+                          .containsEntry("other", "x");
+    }
+
+    @Test
+    void foldedBlockScalar()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            key: >
+              folded
+              together
+
+              new paragraph
+            """);
+
+        assertThat(result).containsEntry("key", "folded together\nnew paragraph\n");
+    }
+
+    @Test
+    void foldedBlockScalarWithMoreIndentedLines()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            key: >
+              folded
+              text
+                more indented
+                lines kept
+              back to
+              folding
+
+                after blank
+              end
+            """);
+
+        assertThat(result).containsEntry("key", "folded text\n  more indented\n  lines kept\nback to folding\n\n  after blank\nend\n");
+    }
+
+    @Test
+    void foldedBlockScalarWithSeveralBlankLines()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            key: >-
+
+              leading blank
+
+
+              two blanks
+            """);
+
+        assertThat(result).containsEntry("key", "\nleading blank\n\ntwo blanks");
+    }
+
+    @Test
+    void blockScalarIndentationIndicator()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            literal: |2
+                indented first line
+              rest
+            nested:
+              folded: >1-
+                leading space
+               next
+            """);
+
+        assertThat(result).containsEntry("literal", "  indented first line\nrest\n")
+                          .containsEntry("nested.folded", " leading space\nnext");
+    }
+
+    @Test
+    void blockScalarIndentationIndicatorWithChomping()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            a: |-2
+                x
+              y
+            b: |+1
+               z
+
+            c: x
+            """);
+
+        assertThat(result).containsEntry("a", "  x\ny")
+                          .containsEntry("b", "  z\n\n")
+                          .containsEntry("c", "x");
+    }
+
+    @Test
+    void invalidBlockScalarHeader()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("key: |x\n  text"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void tabInBlockScalarContent()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("key: |\n  \tindented with tab\n  plain\n");
+
+        assertThat(result).containsEntry("key", "\tindented with tab\nplain\n");
+    }
+
+    @Test
+    void blockScalarChomping()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            strip: |-
+              text
+
+            keep: |+
+              text
+
+            clip: |
+              text
+
+            last: x
+            """);
+
+        assertThat(result).containsEntry("strip", "text")
+                          .containsEntry("keep", "text\n\n")
+                          .containsEntry("clip", "text\n");
+    }
+
+    @Test
+    void chompingKeepsTrailingSpaces()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("strip: |-\n  text  \nclip: |\n  text  \n");
+
+        assertThat(result).containsEntry("strip", "text  ")
+                          .containsEntry("clip", "text  \n");
+    }
+
+    @Test
+    void clipWithoutFinalLineBreak()
+    {
+        //Attribute values usually don't end with a line break, and then there is none to keep
+        assertThat(PropertyBlockParser.parseYaml("key: |\n  text")).containsEntry("key", "text");
+        assertThat(PropertyBlockParser.parseYaml("key: |+\n  text")).containsEntry("key", "text");
+    }
+
+    @Test
+    void blockScalarWithOnlyBlankLines()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("a: |\n\nb: x");
+
+        assertThat(result).containsEntry("a", "")
+                          .containsEntry("b", "x");
+    }
+
+    @Test
+    void blockScalarAtEnd()
+    {
+        assertThat(PropertyBlockParser.parseYaml("a: |")).containsEntry("a", "");
+    }
+
+    @Test
+    void quoting()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            single: 'it''s # not a comment'
+            double: "tab\\there \\u0041"
+            "quoted.key": value
+            colon: a:b
+            nothing: ~
+            empty:
+            """);
+
+        assertThat(result).containsEntry("single", "it's # not a comment")
+                          .containsEntry("double", "tab\there A")
+                          .containsEntry("quoted.key", "value")
+                          .containsEntry("colon", "a:b")
+                          .containsEntry("nothing", "")
+                          .containsEntry("empty", "");
+    }
+
+    @Test
+    void comments()
+    {
+        Map<String, String> result = PropertyBlockParser.parseYaml("""
+            # leading comment
+            ---
+            key: value # trailing comment
+            url: http://host/#fragment
+              # indented comment
+            list:
+              - a # item comment
+            """);
+
+        assertThat(result).containsOnlyKeys("key", "url", "list[0]")
+                          .containsEntry("key", "value")
+                          .containsEntry("url", "http://host/#fragment")
+                          .containsEntry("list[0]", "a");
+    }
+
+    @Test
+    void emptyBlock()
+    {
+        assertThat(PropertyBlockParser.parseYaml("  \n# only a comment\n")).isEmpty();
+    }
+
+    @Test
+    void topLevelSequenceIsRejected()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("- a\n- b"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("mapping");
+    }
+
+    @Test
+    void missingSeparatorIsRejected()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("key: value\njust text"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("line 2");
+    }
+
+    @Test
+    void badIndentationIsRejected()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("a:\n    b: 1\n  c: 2"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("indentation");
+    }
+
+    @Test
+    void tabIndentationIsRejected()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("a:\n\tb: 1"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Tabs");
+    }
+
+    @Test
+    void flowMappingIsRejected()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("a: {b: 1}"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("flow mappings");
+    }
+
+    @Test
+    void malformedFlowSequencesAreRejected()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("a: [\"b, c]"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Unterminated");
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("a: [b, , c]"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Empty item");
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("a: [[b]]"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Nested");
+    }
+
+    @Test
+    void invalidUnicodeEscapeIsRejected()
+    {
+        assertThatThrownBy(() -> PropertyBlockParser.parseYaml("a: \"\\uZZZZ\""))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
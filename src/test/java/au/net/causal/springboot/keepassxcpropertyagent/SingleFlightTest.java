@@ -0,0 +1,167 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.assertj.core.api.Assertions.*;
+
+class SingleFlightTest
+{
+    private static final int CALLERS = 8;
+
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    private final AtomicInteger executions = new AtomicInteger();
+    private final CountDownLatch finishCall = new CountDownLatch(1);
+
+    /**
+     * Starts callers that all execute the same key.  Returns once every caller is blocked, either running the call,
+     * which waits for {@link #finishCall}, or waiting for the caller that is running it.
+     */
+    private List<Thread> startCallers(SingleFlight.Call<String> call, AtomicReferenceArray<Object> outcomes)
+    throws InterruptedException
+    {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++)
+        {
+            int index = i;
+            Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    outcomes.set(index, singleFlight.execute("key", call));
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    outcomes.set(index, e);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000L;
+        for (Thread thread : threads)
+        {
+            while (thread.getState() != Thread.State.WAITING)
+            {
+                if (System.currentTimeMillis() > deadline)
+                    fail("Callers did not block in time");
+
+                Thread.sleep(1L);
+            }
+        }
+
+        return threads;
+    }
+
+    private static void joinAll(List<Thread> threads)
+    throws InterruptedException
+    {
+        for (Thread thread : threads)
+        {
+            thread.join(10_000L);
+            assertThat(thread.isAlive()).isFalse();
+        }
+    }
+
+    @Test
+    void concurrentCallersShareOneExecution()
+    throws InterruptedException
+    {
+        AtomicReferenceArray<Object> outcomes = new AtomicReferenceArray<>(CALLERS);
+        List<Thread> threads = startCallers(() ->
+        {
+            executions.incrementAndGet();
+            awaitFinish();
+            return "result";
+        }, outcomes);
+
+        finishCall.countDown();
+        joinAll(threads);
+
+        assertThat(executions.get()).isEqualTo(1);
+        for (int i = 0; i < CALLERS; i++)
+        {
+            assertThat(outcomes.get(i)).isEqualTo("result");
+        }
+    }
+
+    @Test
+    void failureIsPropagatedToEveryCaller()
+    throws InterruptedException
+    {
+        AtomicReferenceArray<Object> outcomes = new AtomicReferenceArray<>(CALLERS);
+        List<Thread> threads = startCallers(() ->
+        {
+            executions.incrementAndGet();
+            awaitFinish();
+            throw new IOException("KeepassXC is locked");
+        }, outcomes);
+
+        finishCall.countDown();
+        joinAll(threads);
+
+        assertThat(executions.get()).isEqualTo(1);
+        for (int i = 0; i < CALLERS; i++)
+        {
+            assertThat(outcomes.get(i)).isInstanceOf(IOException.class);
+            assertThat(((IOException)outcomes.get(i)).getMessage()).isEqualTo("KeepassXC is locked");
+        }
+    }
+
+    @Test
+    void runtimeExceptionIsRethrownAsIs()
+    {
+        IllegalStateException failure = new IllegalStateException("broken");
+
+        assertThatThrownBy(() -> singleFlight.execute("key", () -> { throw failure; })).isSameAs(failure);
+    }
+
+    @Test
+    void keyIsReleasedAfterCompletion()
+    throws IOException
+    {
+        assertThat(singleFlight.execute("key", () -> "first")).isEqualTo("first");
+        assertThat(singleFlight.execute("key", () -> "second")).isEqualTo("second");
+    }
+
+    @Test
+    void keyIsReleasedAfterFailure()
+    throws IOException
+    {
+        assertThatThrownBy(() -> singleFlight.execute("key", () -> { throw new IOException("first"); }))
+                .isInstanceOf(IOException.class);
+
+        assertThat(singleFlight.execute("key", () -> "retried")).isEqualTo("retried");
+    }
+
+    @Test
+    void differentKeysAreNotShared()
+    throws IOException
+    {
+        //A call for another key made while one is in flight runs on its own
+        String result = singleFlight.execute("outer", () -> "outer-" + singleFlight.execute("inner", () -> "inner"));
+
+        assertThat(result).isEqualTo("outer-inner");
+    }
+
+    private void awaitFinish()
+    throws IOException
+    {
+        try
+        {
+            finishCall.await();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException(e);
+        }
+    }
+}
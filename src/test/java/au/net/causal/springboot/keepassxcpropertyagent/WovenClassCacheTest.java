@@ -0,0 +1,200 @@
+package au.net.causal.springboot.keepassxcpropertyagent;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+class WovenClassCacheTest
+{
+    private static final byte[] FINGERPRINT = {1, 2, 3, 4};
+
+    private static final byte[] ORIGINAL = classFile(0x11);
+    private static final byte[] WOVEN = classFile(0x22);
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * @return bytes that start with the class file magic number.
+     */
+    private static byte[] classFile(int fill)
+    {
+        byte[] buffer = new byte[64];
+        Arrays.fill(buffer, (byte)fill);
+        buffer[0] = (byte)0xCA;
+        buffer[1] = (byte)0xFE;
+        buffer[2] = (byte)0xBA;
+        buffer[3] = (byte)0xBE;
+        return buffer;
+    }
+
+    private WovenClassCache cache()
+    {
+        return new WovenClassCache(tempDir, "1.0", FINGERPRINT);
+    }
+
+    private List<Path> cacheFiles()
+    throws IOException
+    {
+        try (Stream<Path> files = Files.list(tempDir))
+        {
+            return files.toList();
+        }
+    }
+
+    /**
+     * Saves the woven class and returns the single file it was saved to.
+     */
+    private Path saveWoven()
+    throws IOException
+    {
+        cache().save(ORIGINAL, WOVEN);
+        List<Path> files = cacheFiles();
+        assertThat(files).hasSize(1);
+        return files.get(0);
+    }
+
+    @Test
+    void missingEntry()
+    {
+        assertThat(cache().load(ORIGINAL)).isNull();
+    }
+
+    @Test
+    void hit()
+    {
+        cache().save(ORIGINAL, WOVEN);
+
+        assertThat(cache().load(ORIGINAL)).isEqualTo(WOVEN);
+    }
+
+    @Test
+    void differentOriginalMisses()
+    {
+        cache().save(ORIGINAL, WOVEN);
+
+        assertThat(cache().load(classFile(0x33))).isNull();
+    }
+
+    @Test
+    void differentAgentVersionMisses()
+    {
+        cache().save(ORIGINAL, WOVEN);
+
+        assertThat(new WovenClassCache(tempDir, "1.1", FINGERPRINT).load(ORIGINAL)).isNull();
+    }
+
+    @Test
+    void differentWeaverFingerprintMisses()
+    {
+        cache().save(ORIGINAL, WOVEN);
+
+        assertThat(new WovenClassCache(tempDir, "1.0", new byte[] {1, 2, 3, 5}).load(ORIGINAL)).isNull();
+    }
+
+    @Test
+    void keyMismatchInFileMisses()
+    throws IOException
+    {
+        Path file = saveWoven();
+        byte[] cached = Files.readAllBytes(file);
+        cached[0] ^= 0xFF;
+        Files.write(file, cached);
+
+        assertThat(cache().load(ORIGINAL)).isNull();
+    }
+
+    @Test
+    void truncatedFileMisses()
+    throws IOException
+    {
+        Path file = saveWoven();
+        byte[] cached = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(cached, cached.length - 1));
+
+        assertThat(cache().load(ORIGINAL)).isNull();
+    }
+
+    @Test
+    void fileTruncatedInHeaderMisses()
+    throws IOException
+    {
+        Path file = saveWoven();
+        byte[] cached = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(cached, 20));
+
+        assertThat(cache().load(ORIGINAL)).isNull();
+    }
+
+    @Test
+    void emptyFileMisses()
+    throws IOException
+    {
+        Files.write(saveWoven(), new byte[0]);
+
+        assertThat(cache().load(ORIGINAL)).isNull();
+    }
+
+    @Test
+    void badMagicMisses()
+    throws IOException
+    {
+        Path file = saveWoven();
+        byte[] cached = Files.readAllBytes(file);
+        cached[cached.length - WOVEN.length] = 0;
+        Files.write(file, cached);
+
+        assertThat(cache().load(ORIGINAL)).isNull();
+    }
+
+    @Test
+    void invalidEntryIsReplaced()
+    throws IOException
+    {
+        Files.write(saveWoven(), new byte[] {1, 2, 3});
+
+        //What the agent does after a miss
+        assertThat(cache().load(ORIGINAL)).isNull();
+        cache().save(ORIGINAL, WOVEN);
+
+        assertThat(cache().load(ORIGINAL)).isEqualTo(WOVEN);
+    }
+
+    @Test
+    void saveLeavesNoTemporaryFiles()
+    throws IOException
+    {
+        cache().save(ORIGINAL, WOVEN);
+        cache().save(ORIGINAL, WOVEN);
+        cache().save(classFile(0x33), WOVEN);
+
+        List<Path> files = cacheFiles();
+        assertThat(files).hasSize(2);
+        for (Path file : files)
+        {
+            assertThat(file.getFileName().toString().endsWith(".class")).isTrue();
+        }
+    }
+
+    @Test
+    void saveFailureIsIgnored()
+    throws IOException
+    {
+        //Cache directory can't be created since a file is in the way
+        Path blocked = tempDir.resolve("blocked");
+        Files.writeString(blocked, "not a directory");
+        WovenClassCache cache = new WovenClassCache(blocked.resolve("cache"), "1.0", FINGERPRINT);
+
+        cache.save(ORIGINAL, WOVEN);
+
+        assertThat(cache.load(ORIGINAL)).isNull();
+    }
+}
@@ -0,0 +1,56 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Test vectors from RFC 9106 section 5.
+ */
+class Argon2Test
+{
+    private static byte[] hash(int type)
+    {
+        return Argon2.hash(type, 0x13, filled(32, 0x01), filled(16, 0x02), filled(8, 0x03), filled(12, 0x04),
+                           4, 3, 32, 32);
+    }
+
+    private static byte[] filled(int length, int value)
+    {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte)value);
+        return data;
+    }
+
+    @Test
+    void argon2d()
+    {
+        assertThat(HexFormat.of().formatHex(hash(Argon2.TYPE_ARGON2D)))
+                .isEqualTo("512b391b6f1162975371d30919734294f868e3be3984f3c1a13a4db9fabe4acb");
+    }
+
+    @Test
+    void argon2i()
+    {
+        assertThat(HexFormat.of().formatHex(hash(Argon2.TYPE_ARGON2I)))
+                .isEqualTo("c814d9d1dc7f37aa13f0d77f2494bda1c8de6b016dd388d29952a4c4672b6ce8");
+    }
+
+    @Test
+    void argon2id()
+    {
+        assertThat(HexFormat.of().formatHex(hash(Argon2.TYPE_ARGON2ID)))
+                .isEqualTo("0d640df58d78766c08c037a34a8b53c9d01ef0452d75b65eb52520e96b01e659");
+    }
+
+    @Test
+    void invalidParameters()
+    {
+        assertThatThrownBy(() -> Argon2.hash(Argon2.TYPE_ARGON2D, 0x13, new byte[0], new byte[8], new byte[0], new byte[0],
+                                             0, 1, 8, 32))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
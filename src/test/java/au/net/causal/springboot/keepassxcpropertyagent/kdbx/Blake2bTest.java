@@ -0,0 +1,78 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.*;
+
+class Blake2bTest
+{
+    private static String hex(byte[] data)
+    {
+        return HexFormat.of().formatHex(data);
+    }
+
+    /**
+     * RFC 7693 appendix A.
+     */
+    @Test
+    void abc()
+    {
+        assertThat(hex(new Blake2b(64).update("abc".getBytes(StandardCharsets.US_ASCII)).digest()))
+                .isEqualTo("ba80a53f981c4d0d6a2797b69f12f6e94c212f14685ac4b74b12bb6fdbffa2d1" +
+                           "7d87c5392aab792dc252d5de4533cc9518d38aa8dbf1925ab92386edd4009923");
+    }
+
+    @Test
+    void empty()
+    {
+        assertThat(hex(new Blake2b(64).digest()))
+                .isEqualTo("786a02f742015903c6c6fd852552d272912f4740e15847618a86e217f71f5419" +
+                           "d25e1031afee585313896444934eb04b903a685b1448b755d56f701afe9be2ce");
+    }
+
+    /**
+     * Input that is an exact multiple of the block size must not be compressed as a final block too early.
+     */
+    @Test
+    void multipleBlocksInPiecesWithShortDigest()
+    {
+        byte[] data = new byte[512];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte)i;
+        }
+
+        Blake2b blake2b = new Blake2b(32);
+        blake2b.update(data, 0, 100);
+        blake2b.update(data, 100, 28);
+        blake2b.update(data, 128, 384);
+
+        assertThat(hex(blake2b.digest())).isEqualTo("540b20132d8aeae54057cb69c24f95d26a1c472cc700dd450defe9bb796d4f14");
+    }
+
+    @Test
+    void partialBlock()
+    {
+        byte[] data = new byte[200];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (byte)i;
+        }
+
+        assertThat(hex(new Blake2b(64).update(data).digest()))
+                .isEqualTo("fb3c1f0f56a56f8e316fdf5d853c8c872c39635d083634c3904fc3ac07d1b578" +
+                           "e85ff0e480e92d44ade33b62e893ee32343e79ddf6ef292e89b582d312502314");
+    }
+
+    @Test
+    void updateIntIsLittleEndian()
+    {
+        byte[] fromInt = new Blake2b(64).updateInt(0x04030201).digest();
+        byte[] fromBytes = new Blake2b(64).update(new byte[] {1, 2, 3, 4}).digest();
+
+        assertThat(fromInt).isEqualTo(fromBytes);
+    }
+}
@@ -0,0 +1,115 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.*;
+
+class KdbxCredentialsTest
+{
+    /**
+     * Key stored in the <code>keyfile-v2.keyx</code> fixture.
+     */
+    private static final byte[] FIXTURE_KEY = HexFormat.of().parseHex("AE8655DB7E4D76C8D8A96D3322DA5754922CECC73A385310A0C80FDDA5BD1375");
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void passwordOnly()
+    throws IOException
+    {
+        byte[] expected = Digests.sha256(Digests.sha256("password".getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(KdbxCredentials.compositeKey("password", null)).isEqualTo(expected);
+    }
+
+    @Test
+    void xmlVersion2KeyFile()
+    throws Exception
+    {
+        byte[] expected = Digests.sha256(FIXTURE_KEY);
+
+        assertThat(KdbxCredentials.compositeKey(null, KdbxDatabaseTest.fixture("keyfile-v2.keyx"))).isEqualTo(expected);
+    }
+
+    @Test
+    void passwordAndKeyFile()
+    throws Exception
+    {
+        byte[] expected = Digests.sha256(Digests.sha256("password".getBytes(StandardCharsets.UTF_8)), FIXTURE_KEY);
+
+        assertThat(KdbxCredentials.compositeKey("password", KdbxDatabaseTest.fixture("keyfile-v2.keyx"))).isEqualTo(expected);
+    }
+
+    @Test
+    void xmlVersion2KeyFileWithWrongHash()
+    throws Exception
+    {
+        String keyFile = Files.readString(KdbxDatabaseTest.fixture("keyfile-v2.keyx")).replace("EF7CDE8E", "00000000");
+        Path file = tempDir.resolve("bad.keyx");
+        Files.writeString(file, keyFile);
+
+        assertThatThrownBy(() -> KdbxCredentials.compositeKey(null, file)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void xmlVersion1KeyFile()
+    throws IOException
+    {
+        Path file = tempDir.resolve("v1.key");
+        Files.writeString(file, """
+            <?xml version="1.0" encoding="utf-8"?>
+            <KeyFile>
+                <Meta><Version>1.00</Version></Meta>
+                <Key><Data>%s</Data></Key>
+            </KeyFile>
+            """.formatted(Base64.getEncoder().encodeToString(FIXTURE_KEY)));
+
+        assertThat(KdbxCredentials.compositeKey(null, file)).isEqualTo(Digests.sha256(FIXTURE_KEY));
+    }
+
+    @Test
+    void rawKeyFile()
+    throws IOException
+    {
+        Path file = tempDir.resolve("raw.key");
+        Files.write(file, FIXTURE_KEY);
+
+        assertThat(KdbxCredentials.compositeKey(null, file)).isEqualTo(Digests.sha256(FIXTURE_KEY));
+    }
+
+    @Test
+    void hexKeyFile()
+    throws IOException
+    {
+        Path file = tempDir.resolve("hex.key");
+        Files.writeString(file, HexFormat.of().formatHex(FIXTURE_KEY));
+
+        assertThat(KdbxCredentials.compositeKey(null, file)).isEqualTo(Digests.sha256(FIXTURE_KEY));
+    }
+
+    @Test
+    void arbitraryKeyFileIsHashed()
+    throws IOException
+    {
+        Path file = tempDir.resolve("photo.jpg");
+        byte[] content = "any file at all can be used as a key file".getBytes(StandardCharsets.UTF_8);
+        Files.write(file, content);
+
+        assertThat(KdbxCredentials.compositeKey(null, file)).isEqualTo(Digests.sha256(Digests.sha256(content)));
+    }
+
+    @Test
+    void noCredentials()
+    {
+        assertThatThrownBy(() -> KdbxCredentials.compositeKey(null, null)).isInstanceOf(IOException.class);
+    }
+}
@@ -0,0 +1,177 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Reads fixture databases created by <code>generate-fixtures.py</code>, which sits alongside them in the test resources.
+ * Every fixture has the same content, in a different format or with different credentials.
+ */
+class KdbxDatabaseTest
+{
+    private static final String PASSWORD = "fixture-password";
+
+    @TempDir
+    Path tempDir;
+
+    static Path fixture(String name)
+    throws URISyntaxException
+    {
+        return Path.of(KdbxDatabaseTest.class.getResource(name).toURI());
+    }
+
+    private static Map<String, Map<String, String>> entriesByTitle(KdbxDatabase database)
+    {
+        return database.getEntries().stream().collect(Collectors.toMap(entry -> entry.getStrings().get("Title"), KdbxEntry::getStrings));
+    }
+
+    private static void assertFixtureContent(KdbxDatabase database)
+    {
+        Map<String, Map<String, String>> entries = entriesByTitle(database);
+
+        //Recycle bin and history entries are excluded
+        assertThat(entries).containsOnlyKeys("Unrelated", "App", "Second", "Last");
+
+        assertThat(entries.get("Unrelated")).containsEntry("Password", "unrelated-password");
+        assertThat(entries.get("App")).containsEntry("URL", "spring://App/")
+                                      .containsEntry("Password", "tiger")
+                                      .containsEntry("KPH: spring:db.password", " s3cr<et & p\u00e4ssw\u00f6rd ")
+                                      .containsEntry("KPH: spring:db.user", "scott")
+                                      .containsEntry("KPH: spring-yaml:app", "a:\n  b: 1\n  c: [x, y]");
+
+        //Protected values after history and in nested groups must still decrypt, which only works if the
+        //history's protected values consumed their part of the key stream in document order
+        assertThat(entries.get("Second")).containsEntry("KP2A_URL_1", "spring://second")
+                                         .containsEntry("KPH: spring:second.key", "second-value");
+        assertThat(entries.get("Last")).containsEntry("KPH: spring:last.key", "last-value");
+    }
+
+    @Test
+    void kdbx4AesArgon2d()
+    throws Exception
+    {
+        KdbxDatabase database = KdbxDatabase.open(fixture("kdbx4-aes-argon2d.kdbx"), KdbxCredentials.compositeKey(PASSWORD, null));
+
+        assertFixtureContent(database);
+    }
+
+    @Test
+    void kdbx4ChaCha20Argon2idWithKeyFile()
+    throws Exception
+    {
+        KdbxDatabase database = KdbxDatabase.open(fixture("kdbx4-chacha20-argon2id-keyfile.kdbx"),
+                                                  KdbxCredentials.compositeKey(PASSWORD, fixture("keyfile-v2.keyx")));
+
+        assertFixtureContent(database);
+    }
+
+    @Test
+    void kdbx4KeyFileOnly()
+    throws Exception
+    {
+        KdbxDatabase database = KdbxDatabase.open(fixture("kdbx4-aes-aeskdf-keyfile-only.kdbx"),
+                                                  KdbxCredentials.compositeKey(null, fixture("keyfile-v2.keyx")));
+
+        assertFixtureContent(database);
+    }
+
+    @Test
+    void kdbx31AesKdf()
+    throws Exception
+    {
+        KdbxDatabase database = KdbxDatabase.open(fixture("kdbx31-aes-aeskdf.kdbx"), KdbxCredentials.compositeKey(PASSWORD, null));
+
+        assertFixtureContent(database);
+    }
+
+    @Test
+    void kdbx4WrongPassword()
+    throws Exception
+    {
+        Path file = fixture("kdbx4-aes-argon2d.kdbx");
+        byte[] key = KdbxCredentials.compositeKey("wrong-password", null);
+
+        assertThatThrownBy(() -> KdbxDatabase.open(file, key)).isInstanceOf(IOException.class)
+                                                              .hasMessageContaining("Invalid credentials");
+    }
+
+    @Test
+    void kdbx31WrongPassword()
+    throws Exception
+    {
+        Path file = fixture("kdbx31-aes-aeskdf.kdbx");
+        byte[] key = KdbxCredentials.compositeKey("wrong-password", null);
+
+        assertThatThrownBy(() -> KdbxDatabase.open(file, key)).isInstanceOf(IOException.class)
+                                                              .hasMessageContaining("Invalid credentials");
+    }
+
+    @Test
+    void missingKeyFile()
+    throws Exception
+    {
+        Path file = fixture("kdbx4-chacha20-argon2id-keyfile.kdbx");
+        byte[] key = KdbxCredentials.compositeKey(PASSWORD, null);
+
+        assertThatThrownBy(() -> KdbxDatabase.open(file, key)).isInstanceOf(IOException.class)
+                                                              .hasMessageContaining("Invalid credentials");
+    }
+
+    @Test
+    void notKdbxFile()
+    throws Exception
+    {
+        Path file = tempDir.resolve("not.kdbx");
+        Files.writeString(file, "This is not a KeePass database");
+        byte[] key = KdbxCredentials.compositeKey(PASSWORD, null);
+
+        assertThatThrownBy(() -> KdbxDatabase.open(file, key)).isInstanceOf(IOException.class)
+                                                              .hasMessageContaining("Not a KDBX file");
+    }
+
+    @Test
+    void truncatedFile()
+    throws Exception
+    {
+        byte[] data = Files.readAllBytes(fixture("kdbx4-aes-argon2d.kdbx"));
+        Path file = tempDir.resolve("truncated.kdbx");
+        Files.write(file, Arrays.copyOf(data, 100));
+        byte[] key = KdbxCredentials.compositeKey(PASSWORD, null);
+
+        assertThatThrownBy(() -> KdbxDatabase.open(file, key)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void corruptedBlock()
+    throws Exception
+    {
+        byte[] data = Files.readAllBytes(fixture("kdbx4-aes-argon2d.kdbx"));
+        data[data.length - 100] ^= 1;
+        Path file = tempDir.resolve("corrupted.kdbx");
+        Files.write(file, data);
+        byte[] key = KdbxCredentials.compositeKey(PASSWORD, null);
+
+        assertThatThrownBy(() -> KdbxDatabase.open(file, key)).isInstanceOf(IOException.class)
+                                                              .hasMessageContaining("corrupted");
+    }
+
+    @Test
+    void entriesAreUnmodifiable()
+    throws Exception
+    {
+        List<KdbxEntry> entries = KdbxDatabase.open(fixture("kdbx31-aes-aeskdf.kdbx"), KdbxCredentials.compositeKey(PASSWORD, null)).getEntries();
+
+        assertThatThrownBy(() -> entries.remove(0)).isInstanceOf(UnsupportedOperationException.class);
+    }
+}
@@ -0,0 +1,65 @@
+package au.net.causal.springboot.keepassxcpropertyagent.kdbx;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HexFormat;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Test vectors from the eSTREAM/ECRYPT Salsa20/20 256-bit key test vector set.
+ */
+class Salsa20Test
+{
+    @Test
+    void set1Vector0()
+    {
+        byte[] key = new byte[32];
+        key[0] = (byte)0x80;
+        byte[] data = new byte[64];
+
+        new Salsa20(key, new byte[8]).process(data);
+
+        assertThat(HexFormat.of().withUpperCase().formatHex(data))
+                .isEqualTo("E3BE8FDD8BECA2E3EA8EF9475B29A6E7003951E1097A5C38D23B7A5FAD9F6844" +
+                           "B22C97559E2723C7CBBD3FE4FC8D9A0744652A83E72A9C461876AF4D7EF1A117");
+    }
+
+    @Test
+    void set6Vector0()
+    {
+        HexFormat hex = HexFormat.of().withUpperCase();
+        byte[] data = new byte[64];
+
+        new Salsa20(hex.parseHex("0053A6F94C9FF24598EB3E91E4378ADD3083D6297CCF2275C81B6EC11467BA0D"),
+                    hex.parseHex("0D74DB42A91077DE")).process(data);
+
+        assertThat(hex.formatHex(data))
+                .isEqualTo("F5FAD53F79F9DF58C4AEA0D0ED9A9601F278112CA7180D565B420A48019670EA" +
+                           "F24CE493A86263F677B46ACE1924773D2BB25571E1AA8593758FC382B1280B71");
+    }
+
+    /**
+     * Key stream must continue across calls and blocks, as protected values in a database are decrypted one at a time.
+     */
+    @Test
+    void keyStreamContinuesAcrossCalls()
+    {
+        HexFormat hex = HexFormat.of().withUpperCase();
+        Salsa20 salsa20 = new Salsa20(hex.parseHex("0053A6F94C9FF24598EB3E91E4378ADD3083D6297CCF2275C81B6EC11467BA0D"),
+                                      hex.parseHex("0D74DB42A91077DE"));
+        byte[] first = new byte[40];
+        byte[] second = new byte[60];
+        salsa20.process(first);
+        salsa20.process(second);
+
+        assertThat(hex.formatHex(first)).isEqualTo("F5FAD53F79F9DF58C4AEA0D0ED9A9601F278112CA7180D565B420A48019670EAF24CE493A86263F6");
+        assertThat(hex.formatHex(second, 24, 60)).isEqualTo("86B8FE274643AA1E1E54B2FD37620B2284EBBEBC53E2D61247BDC698A18F99263BDED15F");
+    }
+
+    @Test
+    void invalidKeyLength()
+    {
+        assertThatThrownBy(() -> new Salsa20(new byte[16], new byte[8])).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,477 @@
+#!/usr/bin/env python3
+"""
+Generates the KDBX fixtures used by the agent's tests.
+
+Everything is implemented here independently of the agent's Java code (apart from AES and ChaCha20, which come from
+the 'cryptography' package) so that the fixtures check the Java implementation rather than agree with it by
+construction.  Output is deterministic so regenerating the fixtures does not change them.
+
+Usage: python3 generate-fixtures.py [output directory]
+"""
+
+import base64
+import gzip
+import hashlib
+import hmac
+import os
+import random
+import struct
+import sys
+
+from cryptography.hazmat.primitives import padding
+from cryptography.hazmat.primitives.ciphers import Cipher, algorithms, modes
+
+PASSWORD = 'fixture-password'
+
+CIPHER_AES256 = bytes.fromhex('31c1f2e6bf714350be5805216afc5aff')
+CIPHER_CHACHA20 = bytes.fromhex('d6038a2b8b6f4cb5a524339a31dbb59a')
+KDF_AES = bytes.fromhex('c9d9f39a628a4460bf740d08c18a4fea')
+KDF_ARGON2D = bytes.fromhex('ef636ddf8c29444b91f7a9a403e30a0c')
+KDF_ARGON2ID = bytes.fromhex('9e298b1956db4773b23dfc3ec6f0a1e6')
+
+MASK64 = 0xFFFFFFFFFFFFFFFF
+
+
+def sha256(*data):
+    return hashlib.sha256(b''.join(data)).digest()
+
+
+def sha512(*data):
+    return hashlib.sha512(b''.join(data)).digest()
+
+
+# --- Argon2 (RFC 9106) ---
+
+def blake2b_long(out_len, data):
+    data = struct.pack('<I', out_len) + data
+    if out_len <= 64:
+        return hashlib.blake2b(data, digest_size=out_len).digest()
+    r = (out_len + 31) // 32 - 2
+    v = hashlib.blake2b(data).digest()
+    out = v[:32]
+    for _ in range(1, r):
+        v = hashlib.blake2b(v).digest()
+        out += v[:32]
+    return out + hashlib.blake2b(v, digest_size=out_len - 32 * r).digest()
+
+
+def rotr(x, n):
+    return ((x >> n) | (x << (64 - n))) & MASK64
+
+
+def gb(v, a, b, c, d):
+    v[a] = (v[a] + v[b] + 2 * (v[a] & 0xFFFFFFFF) * (v[b] & 0xFFFFFFFF)) & MASK64
+    v[d] = rotr(v[d] ^ v[a], 32)
+    v[c] = (v[c] + v[d] + 2 * (v[c] & 0xFFFFFFFF) * (v[d] & 0xFFFFFFFF)) & MASK64
+    v[b] = rotr(v[b] ^ v[c], 24)
+    v[a] = (v[a] + v[b] + 2 * (v[a] & 0xFFFFFFFF) * (v[b] & 0xFFFFFFFF)) & MASK64
+    v[d] = rotr(v[d] ^ v[a], 16)
+    v[c] = (v[c] + v[d] + 2 * (v[c] & 0xFFFFFFFF) * (v[d] & 0xFFFFFFFF)) & MASK64
+    v[b] = rotr(v[b] ^ v[c], 63)
+
+
+def permute(v, i):
+    gb(v, i[0], i[4], i[8], i[12])
+    gb(v, i[1], i[5], i[9], i[13])
+    gb(v, i[2], i[6], i[10], i[14])
+    gb(v, i[3], i[7], i[11], i[15])
+    gb(v, i[0], i[5], i[10], i[15])
+    gb(v, i[1], i[6], i[11], i[12])
+    gb(v, i[2], i[7], i[8], i[13])
+    gb(v, i[3], i[4], i[9], i[14])
+
+
+def compress(x, y):
+    r = [a ^ b for a, b in zip(x, y)]
+    q = r[:]
+    for i in range(8):
+        permute(q, list(range(16 * i, 16 * i + 16)))
+    for i in range(8):
+        permute(q, [2 * i + 16 * j + k for j in range(8) for k in (0, 1)])
+    return [a ^ b for a, b in zip(q, r)]
+
+
+def block_words(data):
+    return list(struct.unpack('<128Q', data))
+
+
+def argon2(type, password, salt, secret, associated_data, lanes, passes, memory_kib, tag_length):
+    h0 = hashlib.blake2b(struct.pack('<6I', lanes, tag_length, memory_kib, passes, 0x13, type) +
+                         struct.pack('<I', len(password)) + password +
+                         struct.pack('<I', len(salt)) + salt +
+                         struct.pack('<I', len(secret)) + secret +
+                         struct.pack('<I', len(associated_data)) + associated_data).digest()
+    blocks = 4 * lanes * (memory_kib // (4 * lanes))
+    lane_length = blocks // lanes
+    segment_length = lane_length // 4
+    memory = [[None] * lane_length for _ in range(lanes)]
+    for lane in range(lanes):
+        memory[lane][0] = block_words(blake2b_long(1024, h0 + struct.pack('<II', 0, lane)))
+        memory[lane][1] = block_words(blake2b_long(1024, h0 + struct.pack('<II', 1, lane)))
+
+    zero = [0] * 128
+    for pass_number in range(passes):
+        for slice_number in range(4):
+            for lane in range(lanes):
+                independent = type == 1 or (type == 2 and pass_number == 0 and slice_number < 2)
+                input_block = [pass_number, lane, slice_number, blocks, passes, type, 0] + [0] * 121
+                addresses = None
+                start = 2 if pass_number == 0 and slice_number == 0 else 0
+                if independent and start == 2:
+                    input_block[6] += 1
+                    addresses = compress(zero, compress(zero, input_block))
+                for index in range(start, segment_length):
+                    position = slice_number * segment_length + index
+                    previous = memory[lane][position - 1 if position > 0 else lane_length - 1]
+                    if independent:
+                        if index % 128 == 0:
+                            input_block[6] += 1
+                            addresses = compress(zero, compress(zero, input_block))
+                        pseudo_random = addresses[index % 128]
+                    else:
+                        pseudo_random = previous[0]
+
+                    ref_lane = (pseudo_random >> 32) % lanes
+                    if pass_number == 0 and slice_number == 0:
+                        ref_lane = lane
+                    same_lane = ref_lane == lane
+                    if pass_number == 0:
+                        if slice_number == 0:
+                            area = index - 1
+                        elif same_lane:
+                            area = slice_number * segment_length + index - 1
+                        else:
+                            area = slice_number * segment_length + (-1 if index == 0 else 0)
+                    else:
+                        if same_lane:
+                            area = lane_length - segment_length + index - 1
+                        else:
+                            area = lane_length - segment_length + (-1 if index == 0 else 0)
+                    relative = pseudo_random & 0xFFFFFFFF
+                    relative = (relative * relative) >> 32
+                    relative = area - 1 - ((area * relative) >> 32)
+                    start_position = 0
+                    if pass_number != 0 and slice_number != 3:
+                        start_position = (slice_number + 1) * segment_length
+                    reference = memory[ref_lane][(start_position + relative) % lane_length]
+
+                    new_block = compress(previous, reference)
+                    if pass_number > 0:
+                        new_block = [a ^ b for a, b in zip(new_block, memory[lane][position])]
+                    memory[lane][position] = new_block
+
+    final = memory[0][lane_length - 1]
+    for lane in range(1, lanes):
+        final = [a ^ b for a, b in zip(final, memory[lane][lane_length - 1])]
+    return blake2b_long(tag_length, struct.pack('<128Q', *final))
+
+
+def check_argon2():
+    """RFC 9106 section 5 test vectors."""
+    args = (b'\x01' * 32, b'\x02' * 16, b'\x03' * 8, b'\x04' * 12, 4, 3, 32, 32)
+    expected = {
+        0: '512b391b6f1162975371d30919734294f868e3be3984f3c1a13a4db9fabe4acb',
+        1: 'c814d9d1dc7f37aa13f0d77f2494bda1c8de6b016dd388d29952a4c4672b6ce8',
+        2: '0d640df58d78766c08c037a34a8b53c9d01ef0452d75b65eb52520e96b01e659',
+    }
+    for type, tag in expected.items():
+        actual = argon2(type, *args).hex()
+        if actual != tag:
+            raise AssertionError('Argon2 type %d: expected %s but was %s' % (type, tag, actual))
+
+
+# --- Protected value streams ---
+
+def salsa20_block(key, nonce, counter):
+    def rotl(v, c):
+        return ((v << c) & 0xFFFFFFFF) | (v >> (32 - c))
+
+    k = struct.unpack('<8I', key)
+    c = struct.unpack('<4I', b'expand 32-byte k')
+    n = struct.unpack('<2I', nonce)
+    state = [c[0], k[0], k[1], k[2], k[3], c[1], n[0], n[1],
+             counter & 0xFFFFFFFF, counter >> 32, c[2], k[4], k[5], k[6], k[7], c[3]]
+    x = state[:]
+
+    def qr(a, b, c, d):
+        x[b] ^= rotl((x[a] + x[d]) & 0xFFFFFFFF, 7)
+        x[c] ^= rotl((x[b] + x[a]) & 0xFFFFFFFF, 9)
+        x[d] ^= rotl((x[c] + x[b]) & 0xFFFFFFFF, 13)
+        x[a] ^= rotl((x[d] + x[c]) & 0xFFFFFFFF, 18)
+
+    for _ in range(10):
+        qr(0, 4, 8, 12); qr(5, 9, 13, 1); qr(10, 14, 2, 6); qr(15, 3, 7, 11)
+        qr(0, 1, 2, 3); qr(5, 6, 7, 4); qr(10, 11, 8, 9); qr(15, 12, 13, 14)
+    return struct.pack('<16I', *[(x[i] + state[i]) & 0xFFFFFFFF for i in range(16)])
+
+
+class Salsa20Stream:
+    def __init__(self, key, nonce):
+        self.key = key
+        self.nonce = nonce
+        self.buffer = b''
+        self.counter = 0
+
+    def xor(self, data):
+        while len(self.buffer) < len(data):
+            self.buffer += salsa20_block(self.key, self.nonce, self.counter)
+            self.counter += 1
+        result = bytes(a ^ b for a, b in zip(data, self.buffer))
+        self.buffer = self.buffer[len(data):]
+        return result
+
+
+class ChaCha20Stream:
+    def __init__(self, stream_key):
+        key_and_nonce = sha512(stream_key)
+        self.encryptor = Cipher(algorithms.ChaCha20(key_and_nonce[:32], b'\0\0\0\0' + key_and_nonce[32:44]), None).encryptor()
+
+    def xor(self, data):
+        return self.encryptor.update(data)
+
+
+# --- Database content ---
+
+def database_xml(stream):
+    def protect(value):
+        return base64.b64encode(stream.xor(value.encode('utf-8'))).decode('ascii')
+
+    def uuid(name):
+        return base64.b64encode(hashlib.md5(name.encode('utf-8')).digest()).decode('ascii')
+
+    # Protected values must be decrypted in document order, so protected values appear before, inside and after
+    # history and in the recycle bin
+    return f'''<?xml version="1.0" encoding="utf-8" standalone="yes"?>
+<KeePassFile>
+\t<Meta>
+\t\t<Generator>generate-fixtures.py</Generator>
+\t\t<RecycleBinEnabled>True</RecycleBinEnabled>
+\t\t<RecycleBinUUID>{uuid('recycle-bin')}</RecycleBinUUID>
+\t</Meta>
+\t<Root>
+\t\t<Group>
+\t\t\t<UUID>{uuid('root')}</UUID>
+\t\t\t<Name>Root</Name>
+\t\t\t<Entry>
+\t\t\t\t<UUID>{uuid('unrelated')}</UUID>
+\t\t\t\t<String><Key>Title</Key><Value>Unrelated</Value></String>
+\t\t\t\t<String><Key>URL</Key><Value>https://example.com</Value></String>
+\t\t\t\t<String><Key>Password</Key><Value Protected="True">{protect('unrelated-password')}</Value></String>
+\t\t\t</Entry>
+\t\t\t<Entry>
+\t\t\t\t<UUID>{uuid('app')}</UUID>
+\t\t\t\t<String><Key>Title</Key><Value>App</Value></String>
+\t\t\t\t<String><Key>URL</Key><Value>spring://App/</Value></String>
+\t\t\t\t<String><Key>UserName</Key><Value>scott</Value></String>
+\t\t\t\t<String><Key>Password</Key><Value Protected="True">{protect('tiger')}</Value></String>
+\t\t\t\t<String><Key>KPH: spring:db.password</Key><Value Protected="True">{protect(' s3cr<et & pässwörd ')}</Value></String>
+\t\t\t\t<String><Key>KPH: spring:db.user</Key><Value>scott</Value></String>
+\t\t\t\t<String><Key>KPH: spring-yaml:app</Key><Value>a:
+  b: 1
+  c: [x, y]</Value></String>
+\t\t\t\t<History>
+\t\t\t\t\t<Entry>
+\t\t\t\t\t\t<UUID>{uuid('app')}</UUID>
+\t\t\t\t\t\t<String><Key>Title</Key><Value>App</Value></String>
+\t\t\t\t\t\t<String><Key>URL</Key><Value>spring://app</Value></String>
+\t\t\t\t\t\t<String><Key>KPH: spring:db.user</Key><Value>old-user</Value></String>
+\t\t\t\t\t\t<String><Key>KPH: spring:db.password</Key><Value Protected="True">{protect('old-password')}</Value></String>
+\t\t\t\t\t</Entry>
+\t\t\t\t</History>
+\t\t\t</Entry>
+\t\t\t<Group>
+\t\t\t\t<UUID>{uuid('subgroup')}</UUID>
+\t\t\t\t<Name>Sub</Name>
+\t\t\t\t<Entry>
+\t\t\t\t\t<UUID>{uuid('second')}</UUID>
+\t\t\t\t\t<String><Key>Title</Key><Value>Second</Value></String>
+\t\t\t\t\t<String><Key>URL</Key><Value>https://other.example.com</Value></String>
+\t\t\t\t\t<String><Key>KP2A_URL_1</Key><Value>spring://second</Value></String>
+\t\t\t\t\t<String><Key>KPH: spring:second.key</Key><Value Protected="True">{protect('second-value')}</Value></String>
+\t\t\t\t</Entry>
+\t\t\t</Group>
+\t\t\t<Group>
+\t\t\t\t<UUID>{uuid('recycle-bin')}</UUID>
+\t\t\t\t<Name>Recycle Bin</Name>
+\t\t\t\t<Entry>
+\t\t\t\t\t<UUID>{uuid('deleted')}</UUID>
+\t\t\t\t\t<String><Key>Title</Key><Value>Deleted</Value></String>
+\t\t\t\t\t<String><Key>URL</Key><Value>spring://app</Value></String>
+\t\t\t\t\t<String><Key>KPH: spring:deleted</Key><Value Protected="True">{protect('deleted-value')}</Value></String>
+\t\t\t\t</Entry>
+\t\t\t</Group>
+\t\t\t<Entry>
+\t\t\t\t<UUID>{uuid('last')}</UUID>
+\t\t\t\t<String><Key>Title</Key><Value>Last</Value></String>
+\t\t\t\t<String><Key>URL</Key><Value>spring://last</Value></String>
+\t\t\t\t<String><Key>KPH: spring:last.key</Key><Value Protected="True">{protect('last-value')}</Value></String>
+\t\t\t</Entry>
+\t\t</Group>
+\t</Root>
+</KeePassFile>
+'''.encode('utf-8')
+
+
+# --- File formats ---
+
+def field4(field_id, data):
+    return bytes([field_id]) + struct.pack('<I', len(data)) + data
+
+
+def field3(field_id, data):
+    return bytes([field_id]) + struct.pack('<H', len(data)) + data
+
+
+def variant_dictionary(items):
+    out = struct.pack('<H', 0x0100)
+    for value_type, key, value in items:
+        out += bytes([value_type]) + struct.pack('<I', len(key)) + key + struct.pack('<I', len(value)) + value
+    return out + b'\0'
+
+
+def aes_kdf(composite_key, seed, rounds):
+    encryptor = Cipher(algorithms.AES(seed), modes.ECB()).encryptor()
+    key = composite_key
+    for _ in range(rounds):
+        key = encryptor.update(key)
+    return sha256(key)
+
+
+def write_kdbx4(path, rng, composite_key, cipher, kdf):
+    master_seed = rng.randbytes(32)
+    kdf_seed = rng.randbytes(32)
+    iv = rng.randbytes(16 if cipher == CIPHER_AES256 else 12)
+    stream_key = rng.randbytes(64)
+
+    if kdf == KDF_AES:
+        rounds = 1000
+        kdf_parameters = variant_dictionary([(0x42, b'$UUID', KDF_AES),
+                                             (0x05, b'R', struct.pack('<Q', rounds)),
+                                             (0x42, b'S', kdf_seed)])
+        transformed_key = aes_kdf(composite_key, kdf_seed, rounds)
+    else:
+        memory, iterations, parallelism = 64 * 1024, 2, 2
+        kdf_parameters = variant_dictionary([(0x42, b'$UUID', kdf),
+                                             (0x05, b'I', struct.pack('<Q', iterations)),
+                                             (0x05, b'M', struct.pack('<Q', memory)),
+                                             (0x04, b'P', struct.pack('<I', parallelism)),
+                                             (0x42, b'S', kdf_seed),
+                                             (0x04, b'V', struct.pack('<I', 0x13))])
+        transformed_key = argon2(0 if kdf == KDF_ARGON2D else 2, composite_key, kdf_seed, b'', b'',
+                                 parallelism, iterations, memory // 1024, 32)
+
+    header = (struct.pack('<IIHH', 0x9AA2D903, 0xB54BFB67, 1, 4) +
+              field4(2, cipher) +
+              field4(3, struct.pack('<I', 1)) +
+              field4(4, master_seed) +
+              field4(7, iv) +
+              field4(11, kdf_parameters) +
+              field4(0, b'\r\n\r\n'))
+
+    hmac_key = sha512(master_seed, transformed_key, b'\x01')
+
+    def block_key(index):
+        return sha512(struct.pack('<Q', index), hmac_key)
+
+    inner_header = (field4(1, struct.pack('<I', 3)) +
+                    field4(2, stream_key) +
+                    field4(3, b'\x01attachment') +
+                    field4(0, b''))
+    plain = gzip.compress(inner_header + database_xml(ChaCha20Stream(stream_key)), mtime=0)
+
+    encryption_key = sha256(master_seed, transformed_key)
+    if cipher == CIPHER_AES256:
+        padder = padding.PKCS7(128).padder()
+        plain = padder.update(plain) + padder.finalize()
+        encrypted = Cipher(algorithms.AES(encryption_key), modes.CBC(iv)).encryptor().update(plain)
+    else:
+        encrypted = Cipher(algorithms.ChaCha20(encryption_key, b'\0\0\0\0' + iv), None).encryptor().update(plain)
+
+    # Small blocks so there is more than one
+    body = b''
+    blocks = [encrypted[i:i + 512] for i in range(0, len(encrypted), 512)] + [b'']
+    for index, block in enumerate(blocks):
+        mac = hmac.new(block_key(index), struct.pack('<QI', index, len(block)) + block, hashlib.sha256).digest()
+        body += mac + struct.pack('<I', len(block)) + block
+
+    header_mac = hmac.new(block_key(MASK64), header, hashlib.sha256).digest()
+    with open(path, 'wb') as f:
+        f.write(header + sha256(header) + header_mac + body)
+
+
+def write_kdbx31(path, rng, composite_key):
+    master_seed = rng.randbytes(32)
+    transform_seed = rng.randbytes(32)
+    iv = rng.randbytes(16)
+    protected_stream_key = rng.randbytes(32)
+    stream_start_bytes = rng.randbytes(32)
+    rounds = 1000
+
+    header = (struct.pack('<IIHH', 0x9AA2D903, 0xB54BFB67, 1, 3) +
+              field3(2, CIPHER_AES256) +
+              field3(3, struct.pack('<I', 1)) +
+              field3(4, master_seed) +
+              field3(5, transform_seed) +
+              field3(6, struct.pack('<Q', rounds)) +
+              field3(7, iv) +
+              field3(8, protected_stream_key) +
+              field3(9, stream_start_bytes) +
+              field3(10, struct.pack('<I', 2)) +
+              field3(0, b'\r\n\r\n'))
+
+    xml = gzip.compress(database_xml(Salsa20Stream(sha256(protected_stream_key), bytes.fromhex('E830094B97205D2A'))), mtime=0)
+    hashed_blocks = b''
+    index = 0
+    for i in range(0, len(xml), 512):
+        block = xml[i:i + 512]
+        hashed_blocks += struct.pack('<I', index) + sha256(block) + struct.pack('<I', len(block)) + block
+        index += 1
+    hashed_blocks += struct.pack('<I', index) + b'\0' * 32 + struct.pack('<I', 0)
+
+    padder = padding.PKCS7(128).padder()
+    plain = padder.update(stream_start_bytes + hashed_blocks) + padder.finalize()
+    transformed_key = aes_kdf(composite_key, transform_seed, rounds)
+    encrypted = Cipher(algorithms.AES(sha256(master_seed, transformed_key)), modes.CBC(iv)).encryptor().update(plain)
+    with open(path, 'wb') as f:
+        f.write(header + encrypted)
+
+
+def write_xml_key_file(path, key):
+    data = key.hex().upper()
+    groups = ' '.join(data[i:i + 8] for i in range(0, len(data), 8))
+    with open(path, 'w') as f:
+        f.write(f'''<?xml version="1.0" encoding="UTF-8"?>
+<KeyFile>
+    <Meta>
+        <Version>2.0</Version>
+    </Meta>
+    <Key>
+        <Data Hash="{sha256(key)[:4].hex().upper()}">
+            {groups[:35]}
+            {groups[36:]}
+        </Data>
+    </Key>
+</KeyFile>
+''')
+
+
+def main():
+    output = sys.argv[1] if len(sys.argv) > 1 else os.path.dirname(os.path.abspath(__file__))
+    check_argon2()
+
+    rng = random.Random(20261018)
+    key = rng.randbytes(32)
+    write_xml_key_file(os.path.join(output, 'keyfile-v2.keyx'), key)
+
+    password_key = sha256(sha256(PASSWORD.encode('utf-8')))
+    password_and_key_file_key = sha256(sha256(PASSWORD.encode('utf-8')), key)
+    key_file_only_key = sha256(key)
+
+    write_kdbx4(os.path.join(output, 'kdbx4-aes-argon2d.kdbx'), rng, password_key, CIPHER_AES256, KDF_ARGON2D)
+    write_kdbx4(os.path.join(output, 'kdbx4-chacha20-argon2id-keyfile.kdbx'), rng, password_and_key_file_key, CIPHER_CHACHA20, KDF_ARGON2ID)
+    write_kdbx4(os.path.join(output, 'kdbx4-aes-aeskdf-keyfile-only.kdbx'), rng, key_file_only_key, CIPHER_AES256, KDF_AES)
+    write_kdbx31(os.path.join(output, 'kdbx31-aes-aeskdf.kdbx'), rng, password_key)
+
+
+if __name__ == '__main__':
+    main()